@@ -1,11 +1,16 @@
 package com.malt.mongopostgresqlstreamer;
 
+import com.malt.mongopostgresqlstreamer.checkpoints.CheckpointStore;
+import com.malt.mongopostgresqlstreamer.checkpoints.TransactionalCheckpointStore;
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
 import com.malt.mongopostgresqlstreamer.monitoring.InitialImport;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.UpdateOptions;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
 import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,8 +18,21 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Updates.combine;
@@ -29,14 +47,60 @@ public class CheckpointManager {
     @Value(value = "${mongo.connector.identifier:test}")
     private String identifier;
 
+    @Value(value = "${mongo.connector.ingestion:oplog}")
+    private String ingestion;
+
+    @Value(value = "${mongo.connector.checkpoint.interval:1000}")
+    private long checkpointInterval;
+
+    @Value(value = "${mongo.connector.checkpoint.operations:1000}")
+    private long checkpointOperations;
+
     @Autowired
     @Qualifier("database")
     private MongoDatabase database;
     @Autowired
     @Qualifier("oplog")
     private MongoDatabase oplog;
+    @Autowired
+    private CheckpointStore checkpointStore;
+    @Autowired
+    private ShardDiscovery shardDiscovery;
+
+    private final AtomicReference<Checkpoint> pending = new AtomicReference<>();
+    private final AtomicLong pendingOperations = new AtomicLong();
+    private final Map<String, BsonTimestamp> shardPositions = new HashMap<>();
+    private volatile Checkpoint lastFlushed;
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void init() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (checkpointInterval > 0) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(checkpointInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
 
     public BsonTimestamp getLastOplog() {
+        return getLastOplog(oplog);
+    }
+
+    private static BsonTimestamp getLastOplog(MongoDatabase oplog) {
         Document lastOplog = oplog.getCollection(OPLOG_COLLECTION_NAME).find()
                 .sort(Sorts.descending("$natural"))
                 .first();
@@ -47,31 +111,191 @@ public class CheckpointManager {
         throw new IllegalStateException("Unable to retrieve last oplog. Maybe you are not running your mongodb in a replica set");
     }
 
-    public Optional<BsonTimestamp> getLastKnown() {
-        MongoCollection<Document> oplogOffset = database.getCollection("mongooplog");
-        Document lastProcessedOplog = oplogOffset.find(eq("_id", identifier)).first();
-        Optional<BsonTimestamp> checkpoint = Optional.empty();
-        if (lastProcessedOplog != null && lastProcessedOplog.get("ts", BsonTimestamp.class) != null) {
-            checkpoint = Optional.ofNullable(lastProcessedOplog.get("ts", BsonTimestamp.class));
-            log.debug("Checkpoint found in the administrative database : {}.", checkpoint.get().toString());
+    /**
+     * Position from which the streaming will start after an initial import.
+     */
+    public BsonTimestamp getCurrentPosition() {
+        if (OplogStreamer.SHARDED_OPLOG.equals(ingestion)) {
+            // A single position for every shard: the oldest one, so that nothing written after it is missed
+            return shardDiscovery.getShards().stream()
+                    .map(shard -> getLastOplog(shard.getOplog()))
+                    .min(Comparator.naturalOrder())
+                    .orElseThrow(() -> new IllegalStateException("No shard found"));
         }
+        if (OplogStreamer.CHANGE_STREAMS.equals(ingestion)) {
+            // Change streams don't need any access to the oplog, rely on the cluster time instead
+            Document isMaster = database.runCommand(new Document("isMaster", 1));
+            BsonTimestamp operationTime = isMaster.get("operationTime", BsonTimestamp.class);
+            if (operationTime != null) {
+                return operationTime;
+            }
+        }
+        return getLastOplog();
+    }
+
+    public Optional<BsonTimestamp> getLastKnown() {
+        Optional<BsonTimestamp> checkpoint = checkpointStore.load().map(Checkpoint::getTimestamp);
+        checkpoint.ifPresent(timestamp -> log.debug("Checkpoint found : {}.", timestamp));
         return checkpoint;
     }
 
+    /**
+     * Position of a shard, or the global one if the shard has none yet (right after an import for instance).
+     */
+    public Optional<BsonTimestamp> getLastKnown(String shard) {
+        return checkpointStore.load()
+                .map(checkpoint -> checkpoint.getShardTimestamps().getOrDefault(shard, checkpoint.getTimestamp()));
+    }
+
+    public Optional<BsonDocument> getLastResumeToken() {
+        Checkpoint latest = Optional.ofNullable(pending.get()).orElse(lastFlushed);
+        if (latest != null && !isTransactional()) {
+            return Optional.ofNullable(latest.getResumeToken());
+        }
+        return checkpointStore.load().map(Checkpoint::getResumeToken);
+    }
+
+    /**
+     * When true, the checkpoint must be kept with {@link #keepInTransaction} by each transaction applying operations,
+     * rather than with {@link #keep} once they are committed.
+     */
+    public boolean isTransactional() {
+        return checkpointStore instanceof TransactionalCheckpointStore;
+    }
+
+    /**
+     * A store that isn't transactional just saves the checkpoint.
+     */
+    public void keepInTransaction(int lane, BsonTimestamp timestamp, BsonDocument resumeToken) {
+        Checkpoint checkpoint = new Checkpoint(timestamp, resumeToken);
+        if (isTransactional()) {
+            ((TransactionalCheckpointStore) checkpointStore).saveInTransaction(lane, checkpoint);
+        } else {
+            checkpointStore.save(checkpoint);
+        }
+    }
+
+    /**
+     * Entries read again after a restart but whose changes were committed already, only known to a transactional store.
+     */
+    public Predicate<OplogEntry> alreadyApplied() {
+        return isTransactional() ? ((TransactionalCheckpointStore) checkpointStore).alreadyApplied() : entry -> false;
+    }
 
     public void keep(BsonTimestamp timestamp) {
-        MongoCollection<Document> collection = database.getCollection("mongooplog");
-        collection.updateOne(eq("_id", identifier), set("ts", timestamp), new UpdateOptions().upsert(true));
+        keep(timestamp, null, 1);
+    }
+
+    public void keep(BsonTimestamp timestamp, BsonDocument resumeToken) {
+        keep(timestamp, resumeToken, 1);
     }
 
-    public void storeImportStart() {
+    /**
+     * Remember the position of the last applied operations. It is only written to the checkpoint store
+     * every {@code checkpointOperations} operations or {@code checkpointInterval} ms, whichever comes first,
+     * intermediate positions being superseded by the latest one.
+     */
+    public void keep(BsonTimestamp timestamp, BsonDocument resumeToken, int operations) {
+        keep(new Checkpoint(timestamp, resumeToken), operations);
+    }
+
+    private void keep(Checkpoint checkpoint, int operations) {
+        pending.set(checkpoint);
+        if (checkpointOperations <= 1) {
+            flush();
+            return;
+        }
+        long previous = pendingOperations.getAndAdd(operations);
+        if (previous < checkpointOperations && previous + operations >= checkpointOperations) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Positions the shards start from, kept along with the positions of the active shards until they move.
+     */
+    public void startShards(Map<String, BsonTimestamp> shardTimestamps) {
+        synchronized (shardPositions) {
+            shardPositions.clear();
+            shardPositions.putAll(shardTimestamps);
+        }
+    }
+
+    /**
+     * Remember the positions of the shards read by the last applied operations. The global position is the oldest
+     * of all shards, which is where a reader unaware of the shards would have to resume.
+     */
+    public void keepShards(Map<String, BsonTimestamp> shardTimestamps, int operations) {
+        Map<String, BsonTimestamp> snapshot;
+        synchronized (shardPositions) {
+            shardPositions.putAll(shardTimestamps);
+            snapshot = new TreeMap<>(shardPositions);
+        }
+        BsonTimestamp oldest = Collections.min(snapshot.values());
+        keep(new Checkpoint(oldest, null, snapshot), operations);
+    }
+
+    /**
+     * Write the latest kept position, if any, right away.
+     */
+    public synchronized void flush() {
+        pendingOperations.set(0);
+        Checkpoint checkpoint = pending.getAndSet(null);
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpointStore.save(checkpoint);
+        } catch (RuntimeException e) {
+            // Don't lose it, unless a more recent one was kept in the meantime
+            pending.compareAndSet(null, checkpoint);
+            throw e;
+        }
+        lastFlushed = checkpoint;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Unable to store the checkpoint, will retry", e);
+        }
+    }
+
+    /**
+     * @param position where the streaming will start once the import is done
+     */
+    public void storeImportStart(BsonTimestamp position) {
         MongoCollection<Document> collection = database.getCollection("mongooplog");
         collection.updateOne(eq("_id", identifier), combine(
                 set("import", "running"),
-                set("start", new Date())
+                set("start", new Date()),
+                set("importPosition", position)
         ), new UpdateOptions().upsert(true));
     }
 
+    /**
+     * Position stored when the last import started, if this import never ended.
+     */
+    public Optional<BsonTimestamp> getInterruptedImport() {
+        Document status = database.getCollection("mongooplog").find(eq("_id", identifier)).first();
+        if (status == null || !"running".equals(status.getString("import"))) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(status.get("importPosition", BsonTimestamp.class));
+    }
+
+    /**
+     * End of the last import, if it completed.
+     */
+    public Optional<Date> getImportEnd() {
+        Document status = database.getCollection("mongooplog").find(eq("_id", identifier)).first();
+        if (status == null || !"done".equals(status.getString("import"))) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(status.getDate("end"));
+    }
+
     public void storeImportEnd(float length) {
         float lenghtInMinutes = (length/1000F)/60F;
 
@@ -0,0 +1,117 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.FilterMapping;
+import com.malt.mongopostgresqlstreamer.model.Route;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.mongodb.client.model.Filters.*;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Builds the server side filters of the oplog and change streams cursors, so that inserts rejected by the
+ * {@code _filters} of every mapping of their namespace are never sent to the streamer.
+ * Documents are still filtered by the streamer: these filters may only let more documents through.
+ */
+@Service
+public class FilterPushdown {
+
+    @Value(value = "${mongo.connector.filters.pushdown:true}")
+    private boolean enabled;
+
+    @Autowired
+    private MappingsManager mappingsManager;
+
+    public Bson oplogFilter() {
+        return oplogFilter(mappingsManager.mappedNamespaces());
+    }
+
+    public Bson oplogFilter(Collection<String> namespaces) {
+        return filter(
+                namespaces,
+                namespace -> eq("ns", namespace),
+                namespaces -> in("ns", namespaces),
+                "op", "i", Arrays.asList("u", "d"),
+                "o."
+        );
+    }
+
+    public Bson changeStreamFilter() {
+        return filter(
+                mappingsManager.mappedNamespaces(),
+                FilterPushdown::changeStreamNamespace,
+                namespaces -> or(namespaces.stream().map(FilterPushdown::changeStreamNamespace).collect(toList())),
+                "operationType", "insert", Arrays.asList("update", "replace", "delete"),
+                "fullDocument."
+        );
+    }
+
+    private Bson filter(
+            Collection<String> namespaces,
+            Function<String, Bson> namespaceFilter,
+            Function<List<String>, Bson> namespacesFilter,
+            String operationField,
+            String insert,
+            List<String> otherOperations,
+            String documentPrefix) {
+
+        List<String> operations = new ArrayList<>(otherOperations);
+        operations.add(insert);
+
+        List<String> unfilteredNamespaces = new ArrayList<>();
+        List<Bson> filteredNamespaces = new ArrayList<>();
+        for (String namespace : namespaces) {
+            List<Route> routes = mappingsManager.routesFor(namespace);
+            if (!enabled || routes.stream().anyMatch(route -> route.getTableMapping().getFilters().isEmpty())) {
+                unfilteredNamespaces.add(namespace);
+                continue;
+            }
+
+            List<Bson> acceptedInserts = routes.stream()
+                    .flatMap(route -> route.getTableMapping().getFilters().stream())
+                    .map(filter -> acceptedValue(documentPrefix, filter))
+                    .collect(toList());
+            filteredNamespaces.add(and(
+                    namespaceFilter.apply(namespace),
+                    or(in(operationField, otherOperations), and(eq(operationField, insert), or(acceptedInserts)))
+            ));
+        }
+
+        List<Bson> clauses = new ArrayList<>();
+        if (!unfilteredNamespaces.isEmpty()) {
+            clauses.add(and(namespacesFilter.apply(unfilteredNamespaces), in(operationField, operations)));
+        }
+        clauses.addAll(filteredNamespaces);
+        if (clauses.isEmpty()) {
+            // No namespace to watch (e.g. no lease held), the server rejects an empty $or
+            return in(operationField, Collections.emptyList());
+        }
+        return clauses.size() == 1 ? clauses.get(0) : or(clauses);
+    }
+
+    /**
+     * Filter values are strings, which the streamer also compares to the hexadecimal form of object ids.
+     */
+    private static Bson acceptedValue(String documentPrefix, FilterMapping filter) {
+        String path = documentPrefix + filter.getField();
+        if (ObjectId.isValid(filter.getValue())) {
+            return in(path, filter.getValue(), new ObjectId(filter.getValue()));
+        }
+        return eq(path, filter.getValue());
+    }
+
+    private static Bson changeStreamNamespace(String namespace) {
+        int separator = namespace.indexOf('.');
+        return and(eq("ns.db", namespace.substring(0, separator)), eq("ns.coll", namespace.substring(separator + 1)));
+    }
+}
@@ -1,97 +1,690 @@
 package com.malt.mongopostgresqlstreamer;
 
+import com.malt.mongopostgresqlstreamer.checkpoints.ImportProgressStore;
 import com.malt.mongopostgresqlstreamer.connectors.Connector;
 import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
+import com.malt.mongopostgresqlstreamer.model.FieldMapping;
+import com.malt.mongopostgresqlstreamer.model.FieldPaths;
 import com.malt.mongopostgresqlstreamer.model.FilterMapping;
 import com.malt.mongopostgresqlstreamer.model.FlattenMongoDocument;
+import com.malt.mongopostgresqlstreamer.model.ImportRange;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
 import com.malt.mongopostgresqlstreamer.model.TableMapping;
+import com.malt.mongopostgresqlstreamer.monitoring.ImportMonitor;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import static com.mongodb.client.model.Filters.*;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
 
 @Service
 @Slf4j
 public class InitialImporter {
 
+    private static final int SAMPLES_PER_RANGE = 10;
+    private static final Map<Class<?>, BsonType> SPLITTABLE_TYPES = new HashMap<>();
+
+    static {
+        SPLITTABLE_TYPES.put(ObjectId.class, BsonType.OBJECT_ID);
+        SPLITTABLE_TYPES.put(String.class, BsonType.STRING);
+    }
+
+    @Value(value = "${mongo.connector.import.workers:1}")
+    private int importWorkers;
+
+    @Value(value = "${mongo.connector.import.resumable:false}")
+    private boolean resumable;
+
+    @Value(value = "${mongo.connector.import.checkpoint:10000}")
+    private int importCheckpointDocuments;
+
+    @Value(value = "${mongo.connector.flatten.mapped:false}")
+    private boolean flattenMappedPaths;
+
+    @Value(value = "${mongo.connector.decode.raw:false}")
+    private boolean rawDecoding;
+
+    @Value(value = "${mongo.connector.import.shadow.enabled:false}")
+    private boolean shadow;
+
+    @Value(value = "${mongo.connector.import.shadow.schema:mongo_streamer_shadow}")
+    private String shadowSchema;
+
     @Autowired
     private MappingsManager mappingsManager;
     @Autowired
     private MongoClient mongoClient;
     @Autowired
     private List<Connector> connectors;
+    @Autowired
+    private ImportProgressStore importProgressStore;
+    @Autowired
+    private OplogSpool oplogSpool;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private ImportMonitor importMonitor;
+    @Autowired
+    private ReimportBuffer reimportBuffer;
+    @Autowired
+    private OperationTransformer operationTransformer;
+
+    private TransactionTemplate transactionTemplate;
+    private volatile boolean importing;
 
-    public void start() {
-        createSchema();
-        populateData();
-        addConstraints();
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
-    private void populateData() {
-        for (DatabaseMapping databaseMapping : mappingsManager.mappingConfigs.getDatabaseMappings()) {
-            MongoDatabase mongoDatabase = mongoClient.getDatabase(databaseMapping.getName());
-            List<String> collectionNames = toStream(mongoDatabase.listCollectionNames().iterator()).collect(toList());
+    /**
+     * @param position of the oplog when the import starts
+     * @return position the streaming must start from
+     */
+    public BsonTimestamp start(BsonTimestamp position) {
+        importProgressStore.clear();
+        return run(position);
+    }
+
+    /**
+     * Continue an import that was interrupted: the tables it already started keep their rows, and only the ranges
+     * that weren't fully copied are read again.
+     */
+    public BsonTimestamp resume(BsonTimestamp position) {
+        return run(position);
+    }
+
+    /**
+     * Whether an interrupted import can be resumed, see {@link #resume(BsonTimestamp)}.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
 
+    /**
+     * Whether the initial import (or a forced one) is running.
+     */
+    public boolean isImporting() {
+        return importing;
+    }
+
+    /**
+     * Import a single table mapping again while the other ones keep streaming. Its streamed entries are held back
+     * meanwhile, and applied once its rows are copied.
+     * Without a query, the table is rebuilt in the shadow schema then swapped in. Otherwise only the documents
+     * matching the query are written again to the live table, and the rows of deleted documents are removed.
+     */
+    public void reimport(String mappingName, Document query) {
+        DatabaseMapping databaseMapping = liveMappings().stream()
+                .filter(mapping -> mapping.get(mappingName).isPresent())
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No defined mapping for mappingName " + mappingName + "."));
+        TableMapping tableMapping = databaseMapping.get(mappingName).get();
+        MongoCollection<Document> collection = sourceCollection(mongoClient.getDatabase(databaseMapping.getName()), tableMapping);
+
+        reimportBuffer.start(mappingName, databaseMapping.getName() + "." + tableMapping.getSourceCollection());
+        importMonitor.copying(mappingName);
+        try {
             for (Connector connector : connectors) {
-                for (TableMapping tableMapping : databaseMapping.getTableMappings()) {
-                    boolean needToBeImported = collectionNames.stream()
-                            .anyMatch(collectionIsMapped(tableMapping));
-                    if (needToBeImported) {
-                        String collectionName = tableMapping.getSourceCollection();
-                        String mappingName = tableMapping.getMappingName();
-                        connector.bulkInsert(
-                                mappingName,
-                                mongoDatabase.getCollection(collectionName).count(),
-                                toStream(
-                                        mongoDatabase.getCollection(collectionName)
-                                                .find()
-                                                .noCursorTimeout(true)
-                                                .iterator()
-                                )
-                                        .map(FlattenMongoDocument::fromDocument)
-                                        .filter(tableMapping.getFilters().stream().map(FilterMapping::apply).reduce(Predicate::or).orElse(t -> true)),
-                                databaseMapping
-                        );
+                if (query == null) {
+                    rebuildTable(connector, collection, databaseMapping, tableMapping);
+                } else {
+                    refreshDocuments(connector, collection, databaseMapping, tableMapping, query);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Reimport of {} failed, applying the operations held back to the current table", mappingName, e);
+            importMonitor.failed(mappingName);
+            reimportBuffer.drain(mappingName, entries -> applyHeldBack(mappingName, entries));
+            throw e;
+        }
+        reimportBuffer.drain(mappingName, entries -> applyHeldBack(mappingName, entries));
+        importMonitor.done(mappingName);
+        log.info("{} reimported", mappingName);
+    }
+
+    private void rebuildTable(Connector connector, MongoCollection<Document> collection, DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        String mappingName = tableMapping.getMappingName();
+        DatabaseMapping shadowMapping = databaseMapping.inSchema(shadowSchema);
+        DatabaseMapping retiredMapping = databaseMapping.inSchema(shadowSchema + "_retired");
+
+        transactionTemplate.execute(status -> {
+            connector.createTable(mappingName, shadowMapping);
+            return null;
+        });
+        copy(connector, collection, shadowMapping, tableMapping, new Document(), collection.count());
+        importMonitor.finalizing(mappingName);
+        connector.addConstraints(mappingName, shadowMapping);
+        transactionTemplate.execute(status -> {
+            connector.swapTables(mappingName, shadowMapping, databaseMapping, retiredMapping);
+            return null;
+        });
+        connector.dropTables(mappingName, retiredMapping);
+    }
+
+    /**
+     * In a single transaction, write again the documents matching the query and remove the rows of those the filters
+     * now reject, as well as the rows whose document was deleted from the collection.
+     */
+    private void refreshDocuments(Connector connector, MongoCollection<Document> collection, DatabaseMapping databaseMapping, TableMapping tableMapping, Document query) {
+        String mappingName = tableMapping.getMappingName();
+        Predicate<FlattenMongoDocument> filters = mappingFilters(tableMapping);
+        FieldPaths paths = fieldPaths(databaseMapping, tableMapping);
+        transactionTemplate.execute(status -> {
+            try (MongoCursor<ImportedDocument> cursor = imported(find(collection, tableMapping, query), paths).iterator()) {
+                while (cursor.hasNext()) {
+                    FlattenMongoDocument document = cursor.next().getDocument();
+                    if (filters.test(document)) {
+                        connector.upsert(mappingName, document, databaseMapping);
+                        importMonitor.rowsCopied(mappingName, 1);
+                    } else {
+                        connector.remove(mappingName, document, databaseMapping);
                     }
                 }
             }
+            removeDeletedDocuments(connector, collection, databaseMapping, tableMapping);
+            return null;
+        });
+    }
+
+    /**
+     * The primary keys of the table are looked up in the collection page by page, the missing ones are removed.
+     */
+    private void removeDeletedDocuments(Connector connector, MongoCollection<Document> collection, DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        String mappingName = tableMapping.getMappingName();
+        String keyPath = tableMapping.getByDestinationName(tableMapping.getPrimaryKey())
+                .map(FieldMapping::getSourceName)
+                .orElse("_id");
+        Object after = null;
+        List<Object> keys;
+        while (!(keys = connector.primaryKeys(mappingName, after, importCheckpointDocuments, databaseMapping)).isEmpty()) {
+            Set<String> existingKeys = existingKeys(collection, keyPath, keys);
+            for (Object key : keys) {
+                if (!existingKeys.contains(String.valueOf(key))) {
+                    log.info("Removing {} {} from {}, its document was deleted", keyPath, key, mappingName);
+                    connector.removeByPrimaryKey(mappingName, key, databaseMapping);
+                }
+            }
+            after = keys.get(keys.size() - 1);
         }
     }
 
-    @Transactional
-    protected void createSchema() {
-        for (DatabaseMapping databaseMapping : mappingsManager.mappingConfigs.getDatabaseMappings()) {
+    /**
+     * Keys are compared as strings, as written by the import: object ids are stored as their hexadecimal form.
+     */
+    private static Set<String> existingKeys(MongoCollection<Document> collection, String keyPath, List<Object> keys) {
+        List<Object> values = new ArrayList<>(keys);
+        keys.stream()
+                .filter(key -> key instanceof String && ObjectId.isValid((String) key))
+                .forEach(key -> values.add(new ObjectId((String) key)));
+        Set<String> existingKeys = new HashSet<>();
+        for (Document document : collection.find(in(keyPath, values)).projection(Projections.include(keyPath))) {
+            FlattenMongoDocument.fromDocument(document).get(keyPath)
+                    .ifPresent(key -> existingKeys.add(String.valueOf(key)));
+        }
+        return existingKeys;
+    }
+
+    private void applyHeldBack(String mappingName, List<OplogEntry> entries) {
+        transactionTemplate.execute(status -> {
+            entries.forEach(entry -> operationTransformer.prepare(entry, mappingName::equals).forEach(connectors::forEach));
+            return null;
+        });
+    }
+
+    /**
+     * With a shadow import, the spooled operations are applied to the shadow tables too: they are swapped in once
+     * they caught up with the oplog. The live tables keep receiving the operations meanwhile.
+     */
+    private BsonTimestamp run(BsonTimestamp position) {
+        importing = true;
+        try {
+            List<DatabaseMapping> databaseMappings = shadow ? shadowMappings() : liveMappings();
+            if (oplogSpool.isEnabled()) {
+                oplogSpool.start(position, destination(databaseMappings), shadow);
+            }
+            importMonitor.reset();
+            createSchema(databaseMappings);
+            populateData(databaseMappings);
+            BsonTimestamp streamingPosition = oplogSpool.isEnabled() ? oplogSpool.finish() : position;
+            if (shadow) {
+                swapTables(databaseMappings);
+            }
+            return streamingPosition;
+        } finally {
+            importing = false;
+        }
+    }
+
+    private static UnaryOperator<DatabaseMapping> destination(List<DatabaseMapping> databaseMappings) {
+        Map<String, DatabaseMapping> mappingsByName = databaseMappings.stream()
+                .collect(toMap(DatabaseMapping::getName, Function.identity()));
+        return liveMapping -> mappingsByName.get(liveMapping.getName());
+    }
+
+    private List<DatabaseMapping> liveMappings() {
+        return mappingsManager.mappingConfigs.getDatabaseMappings();
+    }
+
+    /**
+     * A shadow import loads the tables in their own schema, the live ones stay untouched until the swap.
+     */
+    private List<DatabaseMapping> shadowMappings() {
+        return liveMappings().stream()
+                .map(databaseMapping -> databaseMapping.inSchema(shadowSchema))
+                .collect(toList());
+    }
+
+    /**
+     * Every imported table replaces its live one in a single transaction, the previous tables are then dropped in
+     * the background.
+     */
+    private void swapTables(List<DatabaseMapping> shadowMappings) {
+        List<DatabaseMapping> liveMappings = liveMappings();
+        String retiredSchema = shadowSchema + "_retired";
+        List<Runnable> drops = new ArrayList<>();
+
+        log.info("Swapping the reimported tables in");
+        transactionTemplate.execute(status -> {
+            for (int i = 0; i < liveMappings.size(); i++) {
+                DatabaseMapping liveMapping = liveMappings.get(i);
+                DatabaseMapping shadowMapping = shadowMappings.get(i);
+                DatabaseMapping retiredMapping = liveMapping.inSchema(retiredSchema);
+                List<String> collectionNames = toStream(mongoClient.getDatabase(liveMapping.getName()).listCollectionNames().iterator()).collect(toList());
+                for (Connector connector : connectors) {
+                    for (TableMapping tableMapping : liveMapping.getTableMappings()) {
+                        if (collectionNames.stream().anyMatch(collectionIsMapped(tableMapping))) {
+                            connector.swapTables(tableMapping.getMappingName(), shadowMapping, liveMapping, retiredMapping);
+                            drops.add(() -> connector.dropTables(tableMapping.getMappingName(), retiredMapping));
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+
+        Thread dropper = new Thread(() -> {
+            for (Runnable drop : drops) {
+                try {
+                    drop.run();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to drop a replaced table, it is left in the {} schema", retiredSchema, e);
+                }
+            }
+            log.info("Replaced tables dropped");
+        }, "retired-tables-drop");
+        dropper.setDaemon(true);
+        dropper.start();
+    }
+
+    /**
+     * Each table gets its constraints as soon as it is imported. Once every table fed by a collection is ready,
+     * the operations spooled for this collection are applied.
+     */
+    private void populateData(List<DatabaseMapping> databaseMappings) {
+        List<ImportTask> tasks = new ArrayList<>();
+        Map<String, AtomicInteger> pendingTables = new ConcurrentHashMap<>();
+        for (DatabaseMapping databaseMapping : databaseMappings) {
             MongoDatabase mongoDatabase = mongoClient.getDatabase(databaseMapping.getName());
             List<String> collectionNames = toStream(mongoDatabase.listCollectionNames().iterator()).collect(toList());
+
             for (Connector connector : connectors) {
                 for (TableMapping tableMapping : databaseMapping.getTableMappings()) {
-                    boolean needToBeImported = collectionNames
-                            .stream()
+                    boolean needToBeImported = collectionNames.stream()
                             .anyMatch(collectionIsMapped(tableMapping));
                     if (needToBeImported) {
-                        connector.createTable(tableMapping.getMappingName(), databaseMapping);
+                        String namespace = databaseMapping.getName() + "." + tableMapping.getSourceCollection();
+                        pendingTables.computeIfAbsent(namespace, ns -> new AtomicInteger()).incrementAndGet();
+                        long size = collectionSize(mongoDatabase, tableMapping.getSourceCollection());
+                        importMonitor.pending(tableMapping.getMappingName());
+                        tasks.add(new ImportTask(size, () -> {
+                            importMonitor.copying(tableMapping.getMappingName());
+                            importCollection(connector, mongoDatabase, databaseMapping, tableMapping);
+                            importMonitor.finalizing(tableMapping.getMappingName());
+                            addConstraints(connector, databaseMapping, tableMapping);
+                            importMonitor.done(tableMapping.getMappingName());
+                            if (pendingTables.get(namespace).decrementAndGet() == 0 && oplogSpool.isEnabled()) {
+                                oplogSpool.replay(namespace);
+                            }
+                        }));
                     }
                 }
             }
         }
+
+        log.info("Importing {} collections with {} workers", tasks.size(), importWorkers);
+        runConcurrently(largestFirst(tasks), importWorkers, "import-worker-");
+    }
+
+    /**
+     * The largest collections first, so that the longest imports don't start last.
+     */
+    static List<Runnable> largestFirst(List<ImportTask> tasks) {
+        return tasks.stream()
+                .sorted(Comparator.comparingLong(ImportTask::getSize).reversed())
+                .map(ImportTask::getCollectionImport)
+                .collect(toList());
+    }
+
+    /**
+     * Collections with an import parallelism are split in {@code _id} ranges, each one read by its own cursor
+     * and copied to the table by its own COPY stream.
+     */
+    private void importCollection(Connector connector, MongoDatabase mongoDatabase, DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        MongoCollection<Document> collection = sourceCollection(mongoDatabase, tableMapping);
+        List<ImportRange> ranges = resumable ? importProgressStore.ranges(tableMapping.getMappingName()) : Collections.emptyList();
+        if (ranges.isEmpty()) {
+            int parallelism = tableMapping.getImportOptions().getParallelism();
+            List<Bson> filters = parallelism > 1 ? splitRanges(collection, parallelism) : Collections.singletonList(new Document());
+            ranges = IntStream.range(0, filters.size())
+                    .mapToObj(index -> new ImportRange(tableMapping.getMappingName(), index, toDocument(filters.get(index))))
+                    .collect(toList());
+            if (resumable) {
+                importProgressStore.start(ranges);
+            }
+        }
+
+        importMonitor.rowsCopied(tableMapping.getMappingName(), ranges.stream().mapToLong(ImportRange::getRows).sum());
+        List<ImportRange> remainingRanges = ranges.stream().filter(range -> !range.isDone()).collect(toList());
+        if (remainingRanges.isEmpty()) {
+            log.info("{} was already imported", tableMapping.getMappingName());
+            return;
+        }
+        long count = collection.count();
+        if (remainingRanges.size() == 1) {
+            importRange(connector, collection, databaseMapping, tableMapping, remainingRanges.get(0), count);
+            return;
+        }
+
+        log.info("Importing {} in {} ranges of _id", tableMapping.getMappingName(), remainingRanges.size());
+        runConcurrently(
+                remainingRanges.stream()
+                        .map(range -> (Runnable) () -> importRange(connector, collection, databaseMapping, tableMapping, range, count / remainingRanges.size()))
+                        .collect(toList()),
+                tableMapping.getImportOptions().getParallelism(),
+                tableMapping.getMappingName() + "-range-"
+        );
+    }
+
+    private void importRange(
+            Connector connector,
+            MongoCollection<Document> collection,
+            DatabaseMapping databaseMapping,
+            TableMapping tableMapping,
+            ImportRange range,
+            long count) {
+
+        if (!resumable) {
+            copy(connector, collection, databaseMapping, tableMapping, range.getFilter(), count);
+            return;
+        }
+
+        log.info("Starting the import of range {} of {} ({} documents in the collection)...",
+                range.getIndex(), tableMapping.getMappingName(), count);
+        // Read in _id order, so that the range can resume after the last _id committed
+        FindIterable<?> documents = find(collection, tableMapping, range.getFilter())
+                .sort(Sorts.ascending("_id"));
+        Object resumeAfter = range.getLastId();
+        if (resumeAfter != null) {
+            log.info("Resuming the import of {} after _id {} ({} rows already imported)", tableMapping.getMappingName(), resumeAfter, range.getRows());
+            // Unlike $gt, min() bounds the index scan whatever the BSON type of the _id
+            documents = documents.hint(new Document("_id", 1)).min(new Document("_id", resumeAfter));
+        }
+
+        FieldPaths paths = fieldPaths(databaseMapping, tableMapping);
+        try (MongoCursor<ImportedDocument> cursor = imported(documents, paths).iterator()) {
+            List<ImportedDocument> chunk = new ArrayList<>();
+            while (cursor.hasNext()) {
+                ImportedDocument document = cursor.next();
+                if (resumeAfter != null && resumeAfter.equals(document.getId())) {
+                    continue;
+                }
+                chunk.add(document);
+                if (chunk.size() >= importCheckpointDocuments) {
+                    importChunk(connector, databaseMapping, tableMapping, range, chunk);
+                    chunk = new ArrayList<>();
+                }
+            }
+            range.setDone(true);
+            importChunk(connector, databaseMapping, tableMapping, range, chunk);
+        }
+        log.info("Range {} of {} successfully imported ({} rows)", range.getIndex(), tableMapping.getMappingName(), range.getRows());
+    }
+
+    private void copy(
+            Connector connector,
+            MongoCollection<Document> collection,
+            DatabaseMapping databaseMapping,
+            TableMapping tableMapping,
+            Bson filter,
+            long count) {
+
+        FieldPaths paths = fieldPaths(databaseMapping, tableMapping);
+        connector.bulkInsert(
+                tableMapping.getMappingName(),
+                count,
+                toStream(
+                        imported(find(collection, tableMapping, filter), paths)
+                                .iterator()
+                )
+                        .map(ImportedDocument::getDocument)
+                        .filter(mappingFilters(tableMapping))
+                        .peek(document -> importMonitor.rowsCopied(tableMapping.getMappingName(), 1)),
+                databaseMapping
+        );
+    }
+
+    private static MongoCollection<Document> sourceCollection(MongoDatabase mongoDatabase, TableMapping tableMapping) {
+        MongoCollection<Document> collection = mongoDatabase.getCollection(tableMapping.getSourceCollection());
+        String readPreference = tableMapping.getImportOptions().getReadPreference();
+        return readPreference == null ? collection : collection.withReadPreference(ReadPreference.valueOf(readPreference));
+    }
+
+    /**
+     * Only the top level fields needed by the table mapping are read, as raw BSON if enabled.
+     */
+    private FindIterable<?> find(MongoCollection<Document> collection, TableMapping tableMapping, Bson filter) {
+        Class<?> documentClass = rawDecoding ? RawBsonDocument.class : Document.class;
+        FindIterable<?> documents = collection.find(filter, documentClass)
+                .projection(Projections.include(new ArrayList<>(tableMapping.getProjectedPaths())))
+                .noCursorTimeout(true);
+        Integer batchSize = tableMapping.getImportOptions().getBatchSize();
+        return batchSize == null ? documents : documents.batchSize(batchSize);
+    }
+
+    /**
+     * Copy a chunk of documents and save the progress of its range in the same transaction.
+     */
+    private void importChunk(
+            Connector connector,
+            DatabaseMapping databaseMapping,
+            TableMapping tableMapping,
+            ImportRange range,
+            List<ImportedDocument> chunk) {
+
+        List<FlattenMongoDocument> documents = chunk.stream()
+                .map(ImportedDocument::getDocument)
+                .filter(mappingFilters(tableMapping))
+                .collect(toList());
+        transactionTemplate.execute(status -> {
+            connector.bulkInsertChunk(tableMapping.getMappingName(), documents.stream(), databaseMapping);
+            if (!chunk.isEmpty()) {
+                range.setLastId(chunk.get(chunk.size() - 1).getId());
+            }
+            range.setRows(range.getRows() + documents.size());
+            importProgressStore.save(range);
+            return null;
+        });
+        importMonitor.rowsCopied(tableMapping.getMappingName(), documents.size());
+        log.debug("{} rows of {} copied up to _id {}", documents.size(), tableMapping.getMappingName(), range.getLastId());
+    }
+
+    /**
+     * Documents are flattened only along the paths read by the table mappings of their namespace, if enabled.
+     */
+    private FieldPaths fieldPaths(DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        return flattenMappedPaths
+                ? mappingsManager.fieldPathsFor(databaseMapping.getName() + "." + tableMapping.getSourceCollection())
+                : FieldPaths.ALL;
+    }
+
+    private static MongoIterable<ImportedDocument> imported(FindIterable<?> documents, FieldPaths paths) {
+        return documents.map(document -> document instanceof RawBsonDocument
+                ? ImportedDocument.fromRaw((RawBsonDocument) document, paths)
+                : ImportedDocument.from((Document) document, paths));
+    }
+
+    private static Predicate<FlattenMongoDocument> mappingFilters(TableMapping tableMapping) {
+        return tableMapping.getFilters().stream().map(FilterMapping::apply).reduce(Predicate::or).orElse(t -> true);
+    }
+
+    private static Document toDocument(Bson filter) {
+        return Document.parse(filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).toJson());
+    }
+
+    /**
+     * Split points are taken from a sorted random sample of the {@code _id}s. Range queries only match values of the
+     * same BSON type, so the split happens only when the sampled {@code _id}s are all ObjectIds or all strings, and
+     * a last range picks up the documents whose {@code _id} has another type.
+     */
+    List<Bson> splitRanges(MongoCollection<Document> collection, int parallelism) {
+        List<Object> samples = collection.aggregate(Arrays.asList(
+                Aggregates.sample(parallelism * SAMPLES_PER_RANGE),
+                Aggregates.project(Projections.include("_id")),
+                Aggregates.sort(Sorts.ascending("_id"))
+        )).map(document -> document.get("_id")).into(new ArrayList<>());
+
+        List<Bson> ranges = splitRanges(samples, parallelism);
+        if (ranges.isEmpty()) {
+            log.info("{} can't be split: its _id are not all ObjectIds or strings", collection.getNamespace());
+            return Collections.singletonList(new Document());
+        }
+        return ranges;
+    }
+
+    /**
+     * @param samples sorted {@code _id}s
+     * @return no range at all when the samples can't be split
+     */
+    static List<Bson> splitRanges(List<Object> samples, int parallelism) {
+        BsonType idType = samples.isEmpty() ? null : SPLITTABLE_TYPES.get(samples.get(0).getClass());
+        if (idType == null || samples.stream().anyMatch(id -> id.getClass() != samples.get(0).getClass())) {
+            return Collections.emptyList();
+        }
+
+        List<Object> boundaries = new ArrayList<>();
+        for (int i = 1; i < parallelism; i++) {
+            Object boundary = samples.get(i * samples.size() / parallelism);
+            if (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(boundary)) {
+                boundaries.add(boundary);
+            }
+        }
+
+        List<Bson> ranges = new ArrayList<>();
+        ranges.add(lt("_id", boundaries.get(0)));
+        for (int i = 1; i < boundaries.size(); i++) {
+            ranges.add(and(gte("_id", boundaries.get(i - 1)), lt("_id", boundaries.get(i))));
+        }
+        ranges.add(gte("_id", boundaries.get(boundaries.size() - 1)));
+        ranges.add(not(type("_id", idType)));
+        return ranges;
+    }
+
+    private static void runConcurrently(List<Runnable> tasks, int threads, String threadPrefix) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, threadPrefix + counter.incrementAndGet());
+            }
+        });
+        try {
+            List<Future<?>> futures = tasks.stream()
+                    .map(executor::submit)
+                    .collect(toList());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the initial import", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Initial import failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long collectionSize(MongoDatabase mongoDatabase, String collectionName) {
+        try {
+            Document stats = mongoDatabase.runCommand(new Document("collStats", collectionName));
+            Object size = stats.get("size");
+            return size instanceof Number ? ((Number) size).longValue() : 0;
+        } catch (MongoException e) {
+            log.warn("Unable to get the size of {}, it will be imported last", collectionName, e);
+            return 0;
+        }
     }
 
     @Transactional
-    protected void addConstraints() {
-        log.info("Add constraints");
-        for (DatabaseMapping databaseMapping : mappingsManager.mappingConfigs.getDatabaseMappings()) {
+    protected void createSchema(List<DatabaseMapping> databaseMappings) {
+        for (DatabaseMapping databaseMapping : databaseMappings) {
             MongoDatabase mongoDatabase = mongoClient.getDatabase(databaseMapping.getName());
             List<String> collectionNames = toStream(mongoDatabase.listCollectionNames().iterator()).collect(toList());
             for (Connector connector : connectors) {
@@ -99,14 +692,28 @@ public class InitialImporter {
                     boolean needToBeImported = collectionNames
                             .stream()
                             .anyMatch(collectionIsMapped(tableMapping));
-                    if (needToBeImported) {
-                        connector.addConstraints(tableMapping.getMappingName(), databaseMapping);
+                    boolean alreadyStarted = resumable && !importProgressStore.ranges(tableMapping.getMappingName()).isEmpty();
+                    if (needToBeImported && !alreadyStarted) {
+                        connector.createTable(tableMapping.getMappingName(), databaseMapping);
                     }
                 }
             }
         }
     }
 
+    private void addConstraints(Connector connector, DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        if (resumable && importProgressStore.isFinalized(tableMapping.getMappingName())) {
+            return;
+        }
+        log.info("Add constraints on {}", tableMapping.getMappingName());
+        // Indexes are built on their own connections, so the constraints can't share a transaction with them:
+        // the connector skips what a previous attempt already created instead
+        connector.addConstraints(tableMapping.getMappingName(), databaseMapping);
+        if (resumable) {
+            importProgressStore.finalized(tableMapping.getMappingName());
+        }
+    }
+
     private Predicate<String> collectionIsMapped(TableMapping tableMapping) {
         return collectionName -> collectionName.equals(tableMapping.getSourceCollection());
     }
@@ -117,4 +724,31 @@ public class InitialImporter {
                 false
         );
     }
+
+    @Data
+    static class ImportTask {
+        private final long size;
+        private final Runnable collectionImport;
+    }
+
+    /**
+     * A flattened document, with its {@code _id} as read from Mongo to resume a range after it.
+     */
+    @Data
+    private static class ImportedDocument {
+        private final Object id;
+        private final FlattenMongoDocument document;
+
+        private static ImportedDocument from(Document document, FieldPaths paths) {
+            return new ImportedDocument(document.get("_id"), FlattenMongoDocument.fromDocument(document, paths));
+        }
+
+        private static ImportedDocument fromRaw(RawBsonDocument document, FieldPaths paths) {
+            Document id = new DocumentCodec().decode(
+                    new BsonDocumentReader(new BsonDocument("_id", document.get("_id"))),
+                    DecoderContext.builder().build()
+            );
+            return new ImportedDocument(id.get("_id"), FlattenMongoDocument.fromRawDocument(document, paths));
+        }
+    }
 }
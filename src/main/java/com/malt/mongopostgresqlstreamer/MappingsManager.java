@@ -21,6 +21,9 @@ public class MappingsManager {
     private final String mappingFile;
 
     Mappings mappingConfigs;
+    private Map<String, List<Route>> routes = Collections.emptyMap();
+    private List<String> mappedNamespaces = Collections.emptyList();
+    private Map<String, FieldPaths> fieldPaths = Collections.emptyMap();
 
     @Inject
     public MappingsManager(
@@ -34,6 +37,38 @@ public class MappingsManager {
     @PostConstruct
     public void read() {
         mappingConfigs = read(mappingFile);
+        routes = buildRoutes(mappingConfigs);
+        mappedNamespaces = Collections.unmodifiableList(new ArrayList<>(routes.keySet()));
+        fieldPaths = buildFieldPaths(routes);
+    }
+
+    /**
+     * Paths read by all the table mappings of each namespace.
+     */
+    private static Map<String, FieldPaths> buildFieldPaths(Map<String, List<Route>> routes) {
+        Map<String, FieldPaths> fieldPaths = new HashMap<>();
+        routes.forEach((namespace, namespaceRoutes) -> {
+            Set<String> paths = new LinkedHashSet<>();
+            namespaceRoutes.forEach(route -> paths.addAll(route.getTableMapping().getSourcePaths()));
+            fieldPaths.put(namespace, FieldPaths.of(paths));
+        });
+        return Collections.unmodifiableMap(fieldPaths);
+    }
+
+    /**
+     * Table mappings fed by each namespace, in the order of the mapping file. Built once so that dispatching an
+     * operation is a single lookup.
+     */
+    private static Map<String, List<Route>> buildRoutes(Mappings mappingConfigs) {
+        Map<String, List<Route>> routes = new LinkedHashMap<>();
+        for (DatabaseMapping db : mappingConfigs.getDatabaseMappings()) {
+            for (TableMapping tableMapping : db.getTableMappings()) {
+                String namespace = db.getName() + "." + tableMapping.getSourceCollection();
+                routes.computeIfAbsent(namespace, ns -> new ArrayList<>()).add(Route.of(db, tableMapping));
+            }
+        }
+        routes.replaceAll((namespace, namespaceRoutes) -> Collections.unmodifiableList(namespaceRoutes));
+        return Collections.unmodifiableMap(routes);
     }
 
     Mappings read(String mappingFile) {
@@ -100,7 +135,8 @@ public class MappingsManager {
                     !fieldName.equals("indices") &&
                     !fieldName.equals("_source") &&
                     !fieldName.equals("_destination") &&
-                    !fieldName.equals("_filters")) {
+                    !fieldName.equals("_filters") &&
+                    !fieldName.equals("_import")) {
                 FieldMapping fieldMapping = readFieldMapping(mappingName, indices, collection, fieldName);
                 fieldMappings.add(fieldMapping);
             }
@@ -120,9 +156,26 @@ public class MappingsManager {
                 filters.add(new FilterMapping(filter.get("field").getAsString(), filter.get("value").getAsString()));
             }
         });
+        if (collection.has("_import")) {
+            tableMapping.setImportOptions(readImportOptions(collection.getAsJsonObject("_import")));
+        }
         return tableMapping;
     }
 
+    private ImportOptions readImportOptions(JsonObject importObject) {
+        ImportOptions importOptions = new ImportOptions();
+        if (importObject.has("parallelism")) {
+            importOptions.setParallelism(importObject.get("parallelism").getAsInt());
+        }
+        if (importObject.has("batchSize")) {
+            importOptions.setBatchSize(importObject.get("batchSize").getAsInt());
+        }
+        if (importObject.has("readPreference")) {
+            importOptions.setReadPreference(importObject.get("readPreference").getAsString());
+        }
+        return importOptions;
+    }
+
     private void addIndices(List<String> indices, JsonObject collection) {
         if (collection.has("indices")) {
             JsonArray listOfIndices = collection.get("indices").getAsJsonArray();
@@ -199,13 +252,14 @@ public class MappingsManager {
     }
 
     public List<String> mappedNamespaces() {
-        List<String> namespaces = new ArrayList<>();
-        for (DatabaseMapping db : mappingConfigs.getDatabaseMappings()) {
-            for (TableMapping tableMapping : db.getTableMappings()) {
-                String namespace = db.getName() + "." + tableMapping.getSourceCollection();
-                namespaces.add(namespace);
-            }
-        }
-        return namespaces;
+        return mappedNamespaces;
+    }
+
+    public List<Route> routesFor(String namespace) {
+        return routes.getOrDefault(namespace, Collections.emptyList());
+    }
+
+    public FieldPaths fieldPathsFor(String namespace) {
+        return fieldPaths.getOrDefault(namespace, FieldPaths.ALL);
     }
 }
@@ -0,0 +1,66 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the entries of the read queue in batches. A batch is flushed once it holds {@code batchSize} entries, or
+ * {@code maxWait} ms after its first entry was taken, whichever comes first.
+ * Each reader puts an end of stream marker in the queue when it stops, the batches end with the last reader.
+ */
+class MicroBatcher {
+
+    private final BlockingQueue<OplogEntry> queue;
+    private final OplogEntry endOfStream;
+    private final int batchSize;
+    private final long maxWait;
+    private int runningReaders;
+
+    MicroBatcher(BlockingQueue<OplogEntry> queue, OplogEntry endOfStream, int numberOfReaders, int batchSize, long maxWait) {
+        this.queue = queue;
+        this.endOfStream = endOfStream;
+        this.runningReaders = numberOfReaders;
+        this.batchSize = batchSize;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Wait for the next batch.
+     * @return the entries of the batch, empty once every reader stopped
+     */
+    List<OplogEntry> next() throws InterruptedException {
+        if (runningReaders == 0) {
+            return Collections.emptyList();
+        }
+
+        List<OplogEntry> batch = new ArrayList<>();
+        long deadline = 0;
+        while (runningReaders > 0 && batch.size() < batchSize) {
+            OplogEntry entry;
+            if (batch.isEmpty()) {
+                entry = queue.take();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                entry = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (entry == null) {
+                    break;
+                }
+            }
+
+            if (entry == endOfStream) {
+                runningReaders--;
+                continue;
+            }
+            if (batch.isEmpty()) {
+                deadline = System.currentTimeMillis() + maxWait;
+            }
+            batch.add(entry);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,184 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.connectors.Connector;
+import com.malt.mongopostgresqlstreamer.model.*;
+import com.mongodb.MongoClient;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Turns oplog entries into the writes to perform on each connector: flattening, filtering and update resolution.
+ * Nothing is written here, so entries can be transformed concurrently.
+ */
+@Service
+@Slf4j
+public class OperationTransformer {
+
+    @Value(value = "${mongo.connector.updates.fromoplog:false}")
+    private boolean updatesFromOplog;
+
+    @Value(value = "${mongo.connector.flatten.mapped:false}")
+    private boolean flattenMappedPaths;
+
+    @Autowired
+    private MappingsManager mappingsManager;
+    @Autowired
+    private MongoClient mongoClient;
+
+    public List<Consumer<Connector>> prepare(OplogEntry entry) {
+        return prepare(entry, mappingName -> true);
+    }
+
+    /**
+     * Same as {@link #prepare(OplogEntry)}, restricted to some of the table mappings of the namespace.
+     */
+    public List<Consumer<Connector>> prepare(OplogEntry entry, Predicate<String> mappingNames) {
+        return prepare(entry, mappingNames, UnaryOperator.identity());
+    }
+
+    /**
+     * Same as {@link #prepare(OplogEntry, Predicate)}, written to other tables than the live ones.
+     * @param destination gives the mappings of the tables to write to from the live ones
+     */
+    public List<Consumer<Connector>> prepare(OplogEntry entry, Predicate<String> mappingNames, UnaryOperator<DatabaseMapping> destination) {
+        List<Route> routes = mappingsManager.routesFor(entry.getNamespace());
+        if (routes.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Consumer<Connector>> writes = new ArrayList<>(routes.size());
+        String operation = entry.getOperation();
+        Document document = entry.getDocument();
+        FieldPaths paths = fieldPaths(entry);
+        log.debug("Operation {} detected on {}", operation, entry.getNamespace());
+        for (Route route : routes) {
+            String mappingName = route.getMappingName();
+            if (!mappingNames.test(mappingName)) {
+                continue;
+            }
+            DatabaseMapping mappings = destination.apply(route.getDatabaseMapping());
+
+            switch (operation) {
+                case "i":
+                    FlattenMongoDocument newDocument = flatten(document.get("o"), paths);
+                    if (route.getFilter().test(newDocument)) {
+                        writes.add(connector -> connector.insert(mappingName, newDocument, mappings));
+                    }
+                    break;
+                case "u":
+                    writes.addAll(prepareUpdate(entry, route, mappings));
+                    break;
+                case "d":
+                    FlattenMongoDocument removedDocument = FlattenMongoDocument.fromDocument((Document) document.get("o"), paths);
+                    writes.add(connector -> connector.remove(mappingName, removedDocument, mappings));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return writes;
+    }
+
+    public boolean needsLookup(OplogEntry entry) {
+        if (entry.isLookedUp()) {
+            // Change stream updates come with the document looked up by the server
+            return false;
+        }
+        if (!updatesFromOplog || entry.isCoalesced()) {
+            return true;
+        }
+
+        Document update = (Document) entry.getDocument().get("o");
+        if (PartialUpdate.isReplacement(update)) {
+            return !update.containsKey("_id");
+        }
+        Document documentKey = (Document) entry.getDocument().get("o2");
+        for (Route route : mappingsManager.routesFor(entry.getNamespace())) {
+            if (!PartialUpdate.fromOplog(update, documentKey, route.getTableMapping()).isPresent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Updates are applied straight from the oplog entry when possible, otherwise from the current state of the document.
+     */
+    private List<Consumer<Connector>> prepareUpdate(OplogEntry entry, Route route, DatabaseMapping mappings) {
+        List<Consumer<Connector>> writes = new ArrayList<>();
+        String mappingName = route.getMappingName();
+        TableMapping tableMapping = route.getTableMapping();
+        Predicate<FlattenMongoDocument> mappingFilters = route.getFilter();
+
+        if (updatesFromOplog && !entry.isCoalesced()) {
+            Document update = (Document) entry.getDocument().get("o");
+            if (PartialUpdate.isReplacement(update) && update.containsKey("_id")) {
+                FlattenMongoDocument replacement = FlattenMongoDocument.fromDocument(update, fieldPaths(entry));
+                if (mappingFilters.test(replacement)) {
+                    writes.add(connector -> connector.update(mappingName, replacement, mappings));
+                }
+                return writes;
+            }
+
+            Optional<PartialUpdate> partialUpdate = PartialUpdate.fromOplog(update, (Document) entry.getDocument().get("o2"), tableMapping);
+            if (partialUpdate.isPresent()) {
+                writes.add(connector -> {
+                    if (!connector.update(mappingName, partialUpdate.get(), mappings)) {
+                        // The row to update is missing, write the whole document instead
+                        lookup(entry, tableMapping)
+                                .filter(mappingFilters)
+                                .ifPresent(document -> connector.update(mappingName, document, mappings));
+                    }
+                });
+                return writes;
+            }
+            log.debug("Update on {} can't be resolved from the oplog, looking up the document", mappingName);
+        }
+
+        lookup(entry, tableMapping)
+                .filter(mappingFilters)
+                .ifPresent(document -> writes.add(connector -> connector.update(mappingName, document, mappings)));
+        return writes;
+    }
+
+    private Optional<FlattenMongoDocument> lookup(OplogEntry entry, TableMapping tableMapping) {
+        Document updatedDocument = entry.isLookedUp()
+                ? entry.getFullDocument()
+                : mongoClient.getDatabase(entry.getDatabase())
+                        .getCollection(tableMapping.getSourceCollection())
+                        .find(eq("_id", entry.getDocumentId()))
+                        .first();
+        return Optional.ofNullable(updatedDocument).map(document -> FlattenMongoDocument.fromDocument(document, fieldPaths(entry)));
+    }
+
+    /**
+     * Inserted documents may be raw BSON, see {@link OplogEntry#fromRawOplog}.
+     */
+    private static FlattenMongoDocument flatten(Object document, FieldPaths paths) {
+        return document instanceof RawBsonDocument
+                ? FlattenMongoDocument.fromRawDocument((RawBsonDocument) document, paths)
+                : FlattenMongoDocument.fromDocument((Document) document, paths);
+    }
+
+    /**
+     * Documents are flattened only along the paths read by the table mappings of their namespace, if enabled.
+     */
+    private FieldPaths fieldPaths(OplogEntry entry) {
+        return flattenMappedPaths ? mappingsManager.fieldPathsFor(entry.getNamespace()) : FieldPaths.ALL;
+    }
+}
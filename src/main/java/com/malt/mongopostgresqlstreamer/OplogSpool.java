@@ -0,0 +1,385 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.connectors.Connector;
+import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.mongodb.CursorType;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Tails the oplog while the initial import runs, so that the oplog window can't roll over before the streaming
+ * starts. Entries are appended as raw BSON to one file per namespace, and replayed once the tables of the namespace
+ * are imported. From then on, the tailer keeps replaying the new entries of this namespace, in batches or whenever
+ * the oplog is idle. When the import loads other tables than the live ones, the live ones can keep streaming
+ * meanwhile.
+ */
+@Service
+@Slf4j
+public class OplogSpool {
+
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    @Value(value = "${mongo.connector.import.spool.enabled:false}")
+    private boolean enabled;
+
+    @Value(value = "${mongo.connector.import.spool.directory:${java.io.tmpdir}/mongo-streamer-spool}")
+    private String directory;
+
+    @Value(value = "${mongo.connector.ingestion:oplog}")
+    private String ingestion;
+
+    @Value(value = "${mongo.connector.identifier:test}")
+    private String identifier;
+
+    @Autowired
+    @Qualifier("oplog")
+    private MongoDatabase oplog;
+    @Autowired
+    private FilterPushdown filterPushdown;
+    @Autowired
+    private OperationTransformer operationTransformer;
+    @Autowired
+    private List<Connector> connectors;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+    private final Map<String, NamespaceSpool> spools = new ConcurrentHashMap<>();
+    private final Set<String> importedNamespaces = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private volatile UnaryOperator<DatabaseMapping> destination = UnaryOperator.identity();
+    private volatile boolean streamLiveTables;
+    private volatile BsonTimestamp lastSpooled;
+    private volatile boolean stopRequested;
+    private Thread tailer;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * The spool only follows a single oplog, other ingestions catch up after the import as usual.
+     */
+    public boolean isEnabled() {
+        return enabled && "oplog".equals(ingestion);
+    }
+
+    /**
+     * Start spooling the entries written after the given position. Anything spooled by a previous run is discarded.
+     * @param destination gives the mappings of the tables the entries are replayed to, from the live ones
+     * @param streamLiveTables whether the entries are applied to the live tables as well, as soon as they are read
+     */
+    public void start(BsonTimestamp position, UnaryOperator<DatabaseMapping> destination, boolean streamLiveTables) {
+        Path spoolDirectory = Paths.get(directory, identifier);
+        try {
+            if (Files.exists(spoolDirectory)) {
+                deleteFiles(spoolDirectory);
+            }
+            Files.createDirectories(spoolDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to prepare the spool directory " + spoolDirectory, e);
+        }
+
+        log.info("Spooling the oplog from {} in {} during the import", position, spoolDirectory);
+        spools.clear();
+        importedNamespaces.clear();
+        failure.set(null);
+        this.destination = destination;
+        this.streamLiveTables = streamLiveTables;
+        stopRequested = false;
+        lastSpooled = position;
+        tailer = new Thread(() -> {
+            try {
+                tail(spoolDirectory);
+            } catch (RuntimeException e) {
+                log.error("Oplog spooling stopped", e);
+                failure.set(e);
+            }
+        }, "oplog-spool");
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    /**
+     * Apply the entries of a namespace spooled so far. Its tables must be imported, with their constraints: the
+     * entries spooled afterwards are replayed by the tailer.
+     */
+    public void replay(String namespace) {
+        importedNamespaces.add(namespace);
+        NamespaceSpool spool = spools.get(namespace);
+        if (spool != null) {
+            spool.replay();
+        }
+    }
+
+    /**
+     * Stop spooling and apply every remaining entry.
+     * @return position the streaming must start from
+     */
+    public BsonTimestamp finish() {
+        stopRequested = true;
+        try {
+            tailer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping the oplog spool", e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("The oplog couldn't be spooled during the import", failure.get());
+        }
+
+        spools.values().forEach(NamespaceSpool::replay);
+        spools.values().forEach(NamespaceSpool::delete);
+        spools.clear();
+        log.info("Oplog spooled during the import applied up to {}", lastSpooled);
+        return lastSpooled;
+    }
+
+    private void tail(Path spoolDirectory) {
+        List<OplogEntry> liveEntries = new ArrayList<>();
+        int unreplayedEntries = 0;
+        while (!stopRequested) {
+            try (MongoCursor<RawBsonDocument> cursor = oplog.getCollection(CheckpointManager.OPLOG_COLLECTION_NAME, RawBsonDocument.class)
+                    .find(and(gt("ts", lastSpooled), exists("fromMigrate", false), filterPushdown.oplogFilter()))
+                    .projection(include("ts", "op", "ns", "o", "o2"))
+                    .cursorType(CursorType.TailableAwait)
+                    .oplogReplay(true)
+                    .noCursorTimeout(true)
+                    .iterator()) {
+
+                while (!stopRequested) {
+                    RawBsonDocument entry = cursor.tryNext();
+                    if (entry == null) {
+                        applyLive(liveEntries);
+                        replayImported();
+                        unreplayedEntries = 0;
+                        if (cursor.getServerCursor() == null) {
+                            break;
+                        }
+                        continue;
+                    }
+                    String namespace = entry.getString("ns").getValue();
+                    spools.computeIfAbsent(namespace, ns -> new NamespaceSpool(ns, spoolDirectory.resolve(ns + ".bson")))
+                            .append(entry);
+                    lastSpooled = entry.getTimestamp("ts");
+                    if (importedNamespaces.contains(namespace) && ++unreplayedEntries >= REPLAY_BATCH_SIZE) {
+                        replayImported();
+                        unreplayedEntries = 0;
+                    }
+                    if (streamLiveTables) {
+                        liveEntries.add(OplogEntry.fromRawOplog(entry));
+                        if (liveEntries.size() >= REPLAY_BATCH_SIZE) {
+                            applyLive(liveEntries);
+                        }
+                    }
+                }
+            } catch (MongoException e) {
+                log.warn("Spooling cursor lost ({}), reopening it after {}", e.getMessage(), lastSpooled);
+            }
+            // A tailable cursor dies when nothing matches yet, don't reopen it in a tight loop
+            if (!stopRequested) {
+                pause();
+            }
+        }
+        applyLive(liveEntries);
+    }
+
+    /**
+     * Entries of the imported namespaces must not wait for the end of the import.
+     */
+    private void replayImported() {
+        for (String namespace : importedNamespaces) {
+            NamespaceSpool spool = spools.get(namespace);
+            if (spool != null) {
+                spool.replay();
+            }
+        }
+    }
+
+    /**
+     * The live tables are replaced by the imported ones in the end, so they are given up at the first failure,
+     * e.g. when there is no live table yet.
+     */
+    private void applyLive(List<OplogEntry> entries) {
+        if (entries.isEmpty() || !streamLiveTables) {
+            entries.clear();
+            return;
+        }
+        try {
+            transactionTemplate.execute(status -> {
+                entries.forEach(entry -> operationTransformer.prepare(entry).forEach(connectors::forEach));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.warn("Unable to apply the oplog to the live tables during the import, they won't be updated until they are replaced", e);
+            streamLiveTables = false;
+        }
+        entries.clear();
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while spooling the oplog", e);
+        }
+    }
+
+    private void apply(List<OplogEntry> entries) {
+        transactionTemplate.execute(status -> {
+            entries.forEach(entry -> operationTransformer.prepare(entry, mappingName -> true, destination).forEach(connectors::forEach));
+            return null;
+        });
+    }
+
+    private static void deleteFiles(Path spoolDirectory) throws IOException {
+        File[] files = spoolDirectory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Entries of a namespace: appended by the tailer, read back from the last replayed offset.
+     */
+    private class NamespaceSpool {
+        private final String namespace;
+        private final Path file;
+        private final OutputStream output;
+        private final Object replayLock = new Object();
+        private long written;
+        private long replayed;
+
+        private NamespaceSpool(String namespace, Path file) {
+            this.namespace = namespace;
+            this.file = file;
+            try {
+                this.output = new BufferedOutputStream(new FileOutputStream(file.toFile()));
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException("Unable to create the spool file " + file, e);
+            }
+        }
+
+        private synchronized void append(RawBsonDocument entry) {
+            ByteBuffer bytes = entry.getByteBuffer().asNIO();
+            try {
+                // A BSON document starts with its length, nothing else is needed to read them back
+                output.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to spool an entry of " + namespace, e);
+            }
+            written += bytes.remaining();
+        }
+
+        private synchronized long flush() {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to spool an entry of " + namespace, e);
+            }
+            return written;
+        }
+
+        /**
+         * Entries spooled while replaying are left for the next replay.
+         */
+        private void replay() {
+            synchronized (replayLock) {
+                replayAvailable();
+            }
+        }
+
+        private void replayAvailable() {
+            long end = flush();
+            if (replayed >= end) {
+                return;
+            }
+
+            long count = 0;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile())))) {
+                long skipped = 0;
+                while (skipped < replayed) {
+                    skipped += input.skip(replayed - skipped);
+                }
+
+                List<OplogEntry> batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+                long position = replayed;
+                while (position < end) {
+                    byte[] bytes = readDocument(input);
+                    position += bytes.length;
+                    batch.add(OplogEntry.fromOplog(decode(bytes)));
+                    count++;
+                    if (batch.size() >= REPLAY_BATCH_SIZE) {
+                        apply(batch);
+                        batch.clear();
+                    }
+                }
+                apply(batch);
+                replayed = position;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read the spool of " + namespace, e);
+            }
+            log.info("{} spooled operations applied on {}", count, namespace);
+        }
+
+        private void delete() {
+            try {
+                output.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete the spool file {}", file, e);
+            }
+        }
+
+        private byte[] readDocument(DataInputStream input) throws IOException {
+            byte[] length = new byte[4];
+            input.readFully(length);
+            int size = ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            byte[] bytes = new byte[size];
+            System.arraycopy(length, 0, bytes, 0, 4);
+            input.readFully(bytes, 4, size - 4);
+            return bytes;
+        }
+
+        private Document decode(byte[] bytes) {
+            return new DocumentCodec().decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)), DecoderContext.builder().build());
+        }
+    }
+}
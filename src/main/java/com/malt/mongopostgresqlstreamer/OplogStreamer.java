@@ -1,43 +1,126 @@
 package com.malt.mongopostgresqlstreamer;
 
+import com.malt.mongopostgresqlstreamer.cluster.LeaseManager;
 import com.malt.mongopostgresqlstreamer.connectors.Connector;
-import com.malt.mongopostgresqlstreamer.model.FilterMapping;
-import com.malt.mongopostgresqlstreamer.model.FlattenMongoDocument;
-import com.malt.mongopostgresqlstreamer.model.TableMapping;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.malt.mongopostgresqlstreamer.model.Shard;
 import com.mongodb.CursorType;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
 import com.mongodb.MongoQueryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import lombok.Data;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
 import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
+/**
+ * Streams the changes of the mapped collections through three stages linked by bounded queues:
+ * the reader drains the cursor, the transformer groups entries in batches and turns them into writes,
+ * and the calling thread applies these writes and keeps the checkpoint.
+ * A full queue blocks the stage feeding it, up to the reader which then stops pulling from the cursor.
+ */
 @Service
 @Slf4j
 public class OplogStreamer {
 
+    public static final String CHANGE_STREAMS = "changestream";
+    public static final String SHARDED_OPLOG = "sharded-oplog";
+
+    private static final OplogEntry END_OF_STREAM = new OplogEntry(null, null, null, null, null, null, null);
+    private static final PreparedBatch END_OF_BATCHES = new PreparedBatch(Collections.emptyList(), null, Collections.emptyMap(), Collections.emptyMap(), 0);
+
+    @Value(value = "${mongo.connector.ingestion:oplog}")
+    private String ingestion;
+
     @Value(value = "${mongo.connector.identifier:streamer}")
     private String identifier;
 
     @Value(value = "${mongo.database:test}")
     private String dbName;
 
+    @Value(value = "${mongo.connector.batch.size:1}")
+    private int batchSize;
+
+    @Value(value = "${mongo.connector.batch.maxwait:1000}")
+    private long batchMaxWait;
+
+    @Value(value = "${mongo.connector.apply.lanes:1}")
+    private int numberOfLanes;
+
+    @Value(value = "${mongo.connector.cursor.backoff.initial:100}")
+    private long backoffInitial;
+
+    @Value(value = "${mongo.connector.cursor.backoff.max:30000}")
+    private long backoffMax;
+
+    @Value(value = "${mongo.connector.pipeline.buffer:10000}")
+    private int readBufferSize;
+
+    @Value(value = "${mongo.connector.pipeline.batches:4}")
+    private int writeBufferSize;
+
+    @Value(value = "${mongo.connector.pipeline.transformers:2}")
+    private int numberOfTransformers;
+
+    @Value(value = "${mongo.connector.decode.raw:false}")
+    private boolean rawDecoding;
+
     @Autowired
     private MappingsManager mappingsManager;
     @Autowired
@@ -52,118 +135,569 @@ public class OplogStreamer {
     private MongoClient mongoClient;
     @Autowired
     private List<Connector> connectors;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private UpdateLookup updateLookup;
+    @Autowired
+    private WriteCoalescer writeCoalescer;
+    @Autowired
+    private OperationTransformer operationTransformer;
+    @Autowired
+    private ReimportBuffer reimportBuffer;
+    @Autowired
+    private FilterPushdown filterPushdown;
+    @Autowired
+    private ShardDiscovery shardDiscovery;
+    @Autowired
+    private LeaseManager leaseManager;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private TransactionTemplate transactionTemplate;
+    private final List<ExecutorService> laneExecutors = new ArrayList<>();
+    private ExecutorService transformerExecutor;
+
+    private volatile StreamingRun currentRun;
+
+    private Counter readOperations;
+    private Counter transformedOperations;
+    private Counter writtenOperations;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        if (numberOfLanes > 1) {
+            for (int i = 0; i < numberOfLanes; i++) {
+                String laneName = "apply-lane-" + i;
+                laneExecutors.add(Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, laneName)));
+            }
+        }
+        AtomicInteger transformerCount = new AtomicInteger();
+        transformerExecutor = Executors.newFixedThreadPool(numberOfTransformers, runnable ->
+                daemon(runnable, "transformer-" + transformerCount.getAndIncrement()));
+
+        meterRegistry.gauge("streamer.pipeline.queue", Collections.singletonList(Tag.of("stage", "read")), this,
+                streamer -> streamer.queueSize(run -> run.readQueue));
+        meterRegistry.gauge("streamer.pipeline.queue", Collections.singletonList(Tag.of("stage", "write")), this,
+                streamer -> streamer.queueSize(run -> run.writeQueue));
+        readOperations = meterRegistry.counter("streamer.pipeline.operations", "stage", "read");
+        transformedOperations = meterRegistry.counter("streamer.pipeline.operations", "stage", "transform");
+        writtenOperations = meterRegistry.counter("streamer.pipeline.operations", "stage", "write");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        laneExecutors.forEach(ExecutorService::shutdown);
+        transformerExecutor.shutdown();
+    }
 
     public void watchFromCheckpoint(Optional<BsonTimestamp> checkpoint) {
-        log.info("Start watching the oplog...");
-        try (MongoCursor<Document> documents = oplogDocuments(checkpoint).iterator()) {
-            documents.forEachRemaining(document -> {
-                BsonTimestamp timestamp = processOperation(document);
-                checkpointManager.keep(timestamp);
-            });
-        } catch (MongoQueryException e) {
-            if (e.getErrorMessage().contains("MongoCursorNotFoundException")) {
-                watchFromCheckpoint(checkpoint);
-            } else {
-                throw  e;
+        watch(checkpoint, mappingsManager.mappedNamespaces(), checkpointManager.alreadyApplied(), () -> false);
+    }
+
+    /**
+     * Stream the given namespaces only, until the cursors end or a stop is requested. When a stage fails, what was
+     * already read is applied before the failure is rethrown. Every stage is over when this returns.
+     * @param alreadyApplied entries read again but already applied, skipped before any transformation
+     */
+    public void watch(
+            Optional<BsonTimestamp> checkpoint,
+            Collection<String> namespaces,
+            Predicate<OplogEntry> alreadyApplied,
+            BooleanSupplier stopRequested) {
+
+        log.info("Start watching the {} (batches of {} operations, flushed at least every {} ms)...",
+                CHANGE_STREAMS.equals(ingestion) ? "change streams" : ingestion, batchSize, batchMaxWait);
+        StreamingRun run = new StreamingRun(namespaces, alreadyApplied, stopRequested);
+        currentRun = run;
+        List<CursorReader> readers = cursorReaders(run, checkpoint);
+        readers.forEach(reader -> run.startStage(reader.getName(), reader, () -> run.enqueue(run.readQueue, END_OF_STREAM)));
+        run.startStage("oplog-transformer", () -> transform(run, readers.size()), () -> run.enqueue(run.writeQueue, END_OF_BATCHES));
+        try {
+            write(run);
+        } finally {
+            run.stop();
+        }
+    }
+
+    private double queueSize(Function<StreamingRun, BlockingQueue<?>> queue) {
+        StreamingRun run = currentRun;
+        return run == null ? 0 : queue.apply(run).size();
+    }
+
+    /**
+     * A single reader, or one reader per shard each resuming from its own checkpoint.
+     */
+    private List<CursorReader> cursorReaders(StreamingRun run, Optional<BsonTimestamp> checkpoint) {
+        if (!SHARDED_OPLOG.equals(ingestion)) {
+            return Collections.singletonList(new CursorReader(run, "oplog-reader", null, oplog, checkpoint));
+        }
+        if (checkpointManager.isTransactional()) {
+            throw new IllegalStateException("The " + SHARDED_OPLOG + " ingestion only supports the mongo checkpoint store");
+        }
+
+        Map<String, BsonTimestamp> positions = new HashMap<>();
+        List<CursorReader> readers = new ArrayList<>();
+        for (Shard shard : shardDiscovery.getShards()) {
+            Optional<BsonTimestamp> shardCheckpoint = checkpointManager.getLastKnown(shard.getName());
+            if (!shardCheckpoint.isPresent()) {
+                shardCheckpoint = checkpoint;
+            }
+            shardCheckpoint.ifPresent(timestamp -> positions.put(shard.getName(), timestamp));
+            log.info("Shard {} is read from {}", shard.getName(), shardCheckpoint.map(BsonTimestamp::toString).orElse("the start of its oplog"));
+            readers.add(new CursorReader(run, "oplog-reader-" + shard.getName(), shard.getName(), shard.getOplog(), shardCheckpoint));
+        }
+        checkpointManager.startShards(positions);
+        return readers;
+    }
+
+    private static boolean isRecoverable(MongoException e) {
+        return e instanceof MongoCursorNotFoundException
+                || e instanceof MongoSocketException
+                || e instanceof MongoNotPrimaryException
+                || e instanceof MongoNodeIsRecoveringException
+                || (e instanceof MongoQueryException && ((MongoQueryException) e).getErrorMessage().contains("MongoCursorNotFoundException"));
+    }
+
+    /**
+     * Full jitter on top of an exponential backoff, so that streamers losing their cursors together don't retry together.
+     */
+    static long backoff(int failures, long initial, long max) {
+        long ceiling = Math.min(max, initial << Math.min(failures - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Turn each batch of entries into writes. Stops once every reader reached the end of its cursor, readers stopping
+     * as well when a stage fails.
+     */
+    private void transform(StreamingRun run, int numberOfReaders) {
+        MicroBatcher batcher = new MicroBatcher(run.readQueue, END_OF_STREAM, numberOfReaders, batchSize, batchMaxWait);
+        try {
+            List<OplogEntry> batch;
+            while (!(batch = batcher.next()).isEmpty()) {
+                if (!run.enqueue(run.writeQueue, prepare(run, batch))) {
+                    return;
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Entries are transformed concurrently, but the writes keep the order of the batch.
+     */
+    private PreparedBatch prepare(StreamingRun run, List<OplogEntry> operations) {
+        OplogEntry lastOperation = operations.get(operations.size() - 1);
+        List<OplogEntry> entries = writeCoalescer.coalesce(operations.stream()
+                .filter(run.alreadyApplied.negate())
+                .collect(toList()));
+        updateLookup.prefetch(entries, operationTransformer::needsLookup);
+
+        List<Future<List<Consumer<Connector>>>> transformations = entries.stream()
+                .map(entry -> transformerExecutor.submit(() -> operationTransformer.prepare(entry)))
+                .collect(toList());
+        List<PreparedOperation> preparedOperations = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            preparedOperations.add(new PreparedOperation(entries.get(i), await(transformations.get(i))));
+        }
+
+        Map<String, BsonTimestamp> sourceTimestamps = new HashMap<>();
+        operations.stream()
+                .filter(operation -> operation.getSource() != null)
+                .forEach(operation -> sourceTimestamps.put(operation.getSource(), operation.getTimestamp()));
+        Map<String, BsonTimestamp> namespaceTimestamps = new HashMap<>();
+        if (leaseManager.isEnabled()) {
+            operations.forEach(operation -> namespaceTimestamps.put(operation.getNamespace(), operation.getTimestamp()));
+        }
+
+        transformedOperations.increment(operations.size());
+        return new PreparedBatch(preparedOperations, lastOperation, sourceTimestamps, namespaceTimestamps, operations.size());
+    }
+
+    /**
+     * Apply the batches until the transformer is done. When a stage fails, the batches already prepared and the
+     * entries already read are applied before the failure is rethrown.
+     */
+    private void write(StreamingRun run) {
+        while (true) {
+            PreparedBatch batch;
+            try {
+                batch = run.writeQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for operations to apply", e);
+            }
+
+            if (batch == END_OF_BATCHES) {
+                RuntimeException cause = run.failure.get();
+                if (cause != null) {
+                    throw cause;
+                }
+                return;
+            }
+            applyBatch(batch);
+        }
+    }
+
+    private ChangeStreamIterable<Document> changeStreamDocuments(Optional<BsonTimestamp> checkpoint, OplogEntry lastRead) {
+        List<Bson> pipeline = Collections.singletonList(Aggregates.match(filterPushdown.changeStreamFilter()));
+
+        ChangeStreamIterable<Document> changes = mongoClient.watch(pipeline).fullDocument(FullDocument.UPDATE_LOOKUP);
+        Optional<BsonDocument> resumeToken = lastRead != null
+                ? Optional.of(lastRead.getResumeToken())
+                : checkpointManager.getLastResumeToken();
+        if (resumeToken.isPresent()) {
+            return changes.resumeAfter(resumeToken.get());
         }
+        return checkpoint.map(changes::startAtOperationTime).orElse(changes);
     }
 
-    private FindIterable<Document> oplogDocuments(Optional<BsonTimestamp> checkpoint) {
-        MongoCollection<Document> oplog = this.oplog.getCollection("oplog.rs");
+    private <T> FindIterable<T> oplogDocuments(
+            MongoDatabase oplogDatabase,
+            Optional<BsonTimestamp> checkpoint,
+            Collection<String> namespaces,
+            Class<T> documentClass) {
+
+        MongoCollection<Document> oplog = oplogDatabase.getCollection("oplog.rs");
         if (checkpoint.isPresent()) {
-            Document lastKnownOplog = oplog.find(eq("ts", checkpoint.get())).first();
+            Document lastKnownOplog = oplog.find(eq("ts", checkpoint.get())).oplogReplay(true).first();
             if (lastKnownOplog == null) {
                 log.error("Last known oplog is not in the oplog anymore. The watch will starts from first " +
                         "oplog but you should consider relaunch a reimport");
                 checkpoint = Optional.empty();
             }
         }
-        return oplog.find(oplogfilters(checkpoint)).cursorType(CursorType.TailableAwait).noCursorTimeout(true);
-    }
-
-    @Transactional
-    BsonTimestamp processOperation(Document document) {
-        String namespace = document.getString("ns");
-        String[] databaseAndCollection = namespace.split("\\.");
-        String collection = databaseAndCollection[1];
-        String database = databaseAndCollection[0];
-        String operation = document.getString("op");
-        BsonTimestamp timestamp = document.get("ts", BsonTimestamp.class);
-
-        mappingsManager.mappingConfigs.databaseMappingFor(database).ifPresent(mappings -> {
-            MongoDatabase mongoDb = mongoClient.getDatabase(database);
-            List<TableMapping> tableMappings = mappings.getBySourceName(collection);
-            tableMappings.forEach(tableMapping -> {
-                log.debug("Operation {} detected on {}", operation, namespace);
-                Predicate<FlattenMongoDocument> mappingFilters = tableMapping.getFilters().stream()
-                        .map(FilterMapping::apply)
-                        .reduce(Predicate::or)
-                        .orElse(x -> true);
-
-                switch (operation) {
-                    case "i":
-                        FlattenMongoDocument newDocument = FlattenMongoDocument.fromDocument((Document) document.get("o"));
-                        if (mappingFilters.test(newDocument)) {
-                            connectors.forEach(connector ->
-                                    connector.insert(
-                                            tableMapping.getMappingName(),
-                                            newDocument,
-                                            mappings
-                                    )
-                            );
-                        }
-                        break;
-                    case "u":
-                        Map documentIdToUpdate = (Map) document.get("o2");
-                        Document updatedDocument = mongoDb.getCollection(tableMapping.getSourceCollection())
-                                .find(eq("_id", documentIdToUpdate.get("_id")))
-                                .first();
-                        if (updatedDocument != null) {
-                            FlattenMongoDocument flattenMongoDocument = FlattenMongoDocument.fromDocument(updatedDocument);
-                            if (mappingFilters.test(flattenMongoDocument)) {
-                                connectors.forEach(connector ->
-                                        connector.update(
-                                                tableMapping.getMappingName(),
-                                                flattenMongoDocument,
-                                                mappings
-                                        )
-                                );
-                            }
-                        }
-                        break;
-                    case "d":
-                        Document documentIdToRemove = (Document) document.get("o");
-                        connectors.forEach(connector ->
-                                connector.remove(
-                                        tableMapping.getMappingName(),
-                                        FlattenMongoDocument.fromDocument(documentIdToRemove),
-                                        mappings
-                                )
-                        );
-                        break;
-                    default:
-                        break;
+        return oplog.find(oplogfilters(checkpoint, namespaces), documentClass)
+                .projection(include("ts", "op", "ns", "o", "o2"))
+                .cursorType(CursorType.TailableAwait)
+                .oplogReplay(true)
+                .noCursorTimeout(true);
+    }
+
+    /**
+     * Apply a whole batch of oplog entries and checkpoint once, after every involved transaction is committed.
+     * With several lanes, each lane applies its share of the batch in its own transaction (and thus its own
+     * connection), operations on a given document always landing on the same lane.
+     * With a transactional checkpoint store, each lane writes its checkpoint in its own transaction instead.
+     */
+    private void applyBatch(PreparedBatch batch) {
+        List<PreparedOperation> operations = holdBack(batch.getOperations());
+        OplogEntry lastOperation = batch.getLastOperation();
+        boolean transactionalCheckpoint = checkpointManager.isTransactional();
+        if (laneExecutors.isEmpty()) {
+            applyInTransaction(0, operations, transactionalCheckpoint ? lastOperation : null);
+        } else {
+            List<List<PreparedOperation>> partitions = OplogEntry.partition(operations, PreparedOperation::getEntry, laneExecutors.size());
+
+            List<Future<?>> lanes = new ArrayList<>();
+            for (int i = 0; i < laneExecutors.size(); i++) {
+                int lane = i;
+                List<PreparedOperation> partition = partitions.get(i);
+                // Idle lanes still move their checkpoint forward, so that a restart doesn't resume from too far behind
+                if (!partition.isEmpty() || transactionalCheckpoint) {
+                    lanes.add(laneExecutors.get(i).submit(() ->
+                            applyInTransaction(lane, partition, transactionalCheckpoint ? lastOperation : null)));
                 }
-            });
+            }
+            lanes.forEach(OplogStreamer::await);
+        }
 
-        });
+        writtenOperations.increment(batch.getNumberOfOperations());
+        BsonTimestamp timestamp = lastOperation.getTimestamp();
+        log.debug("{} operations applied, last timestamp is {}", batch.getNumberOfOperations(), timestamp);
+        if (transactionalCheckpoint) {
+            return;
+        }
+        if (leaseManager.isEnabled()) {
+            leaseManager.keep(batch.getNamespaceTimestamps());
+        } else if (batch.getSourceTimestamps().isEmpty()) {
+            checkpointManager.keep(timestamp, lastOperation.getResumeToken(), batch.getNumberOfOperations());
+        } else {
+            checkpointManager.keepShards(batch.getSourceTimestamps(), batch.getNumberOfOperations());
+        }
+    }
 
-        return timestamp;
+    /**
+     * Entries of the table mappings being reimported are held back when they are about to be applied, rather than
+     * when they are prepared: a batch prepared before a reimport starts could otherwise be applied to the table while
+     * it is copied. An entry that isn't held back is already in the collection when the copy reads it.
+     */
+    private List<PreparedOperation> holdBack(List<PreparedOperation> operations) {
+        List<PreparedOperation> kept = new ArrayList<>(operations.size());
+        for (PreparedOperation operation : operations) {
+            Set<String> heldBack = reimportBuffer.offer(operation.getEntry());
+            if (heldBack.isEmpty()) {
+                kept.add(operation);
+            } else {
+                OplogEntry entry = operation.getEntry();
+                kept.add(new PreparedOperation(entry, operationTransformer.prepare(entry, mappingName -> !heldBack.contains(mappingName))));
+            }
+        }
+        return kept;
     }
 
-    private Bson oplogfilters(Optional<BsonTimestamp> checkpoint) {
+    private void applyInTransaction(int lane, List<PreparedOperation> operations, OplogEntry checkpoint) {
+        transactionTemplate.execute(status -> {
+            if (leaseManager.isEnabled() && !operations.isEmpty()) {
+                // Fenced out streamers must not commit anything, whatever they still have in their queues
+                leaseManager.checkLeases(operations.stream().map(operation -> operation.getEntry().getNamespace()).collect(toSet()));
+            }
+            operations.forEach(operation -> operation.getWrites().forEach(connectors::forEach));
+            if (checkpoint != null) {
+                checkpointManager.keepInTransaction(lane, checkpoint.getTimestamp(), checkpoint.getResumeToken());
+            }
+            return null;
+        });
+    }
+
+    private Bson oplogfilters(Optional<BsonTimestamp> checkpoint, Collection<String> namespaces) {
         return checkpoint.map(bsonTimestamp -> and(
-                in("ns", mappingsManager.mappedNamespaces()),
                 gt("ts", bsonTimestamp),
                 exists("fromMigrate", false),
-                in("op", "d", "u", "i")))
+                filterPushdown.oplogFilter(namespaces)))
 
                 .orElseGet(() -> and(
-                in("ns", mappingsManager.mappedNamespaces()),
                 exists("fromMigrate", false),
-                in("op", "d", "u", "i")));
+                filterPushdown.oplogFilter(namespaces)));
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the pipeline", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Tails one oplog, or the change streams, into the read queue.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    private class CursorReader implements Runnable {
+        private final StreamingRun run;
+        private final String name;
+        /**
+         * Shard this reader follows, null unless the shards are read separately.
+         */
+        private final String source;
+        private final MongoDatabase oplogDatabase;
+        private final Optional<BsonTimestamp> checkpoint;
+        private volatile OplogEntry lastRead;
+
+        @Override
+        public void run() {
+            supervise();
+        }
 
+        /**
+         * Reopen the cursor when it is lost, right after the last entry handed to the pipeline: every entry read is
+         * applied before the streaming stops, so nothing is read twice. Consecutive failures are retried with an
+         * exponential backoff.
+         */
+        private void supervise() {
+            int failures = 0;
+            while (true) {
+                OplogEntry lastReadBefore = lastRead;
+                Optional<BsonTimestamp> position = lastRead == null ? checkpoint : Optional.of(lastRead.getTimestamp());
+                try {
+                    read(position);
+                    return;
+                } catch (MongoException e) {
+                    if (!isRecoverable(e)) {
+                        throw e;
+                    }
+                    failures = lastRead != lastReadBefore ? 1 : failures + 1;
+                    long delay = backoff(failures, backoffInitial, backoffMax);
+                    log.warn("Cursor of {} lost ({}), reopening it after {} in {} ms", name, e.getMessage(),
+                            lastRead == null ? "the checkpoint" : lastRead.getTimestamp(), delay);
+                    meterRegistry.counter("streamer.cursor.restarts", "cause", e.getClass().getSimpleName()).increment();
+                    if (!run.pause(delay)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void read(Optional<BsonTimestamp> position) {
+            if (CHANGE_STREAMS.equals(ingestion)) {
+                try (MongoCursor<ChangeStreamDocument<Document>> changes = changeStreamDocuments(position, lastRead).iterator()) {
+                    forward(changes, OplogEntry::fromChangeStream);
+                }
+                return;
+            }
+
+            if (rawDecoding) {
+                try (MongoCursor<RawBsonDocument> documents = oplogDocuments(oplogDatabase, position, run.namespaces, RawBsonDocument.class).iterator()) {
+                    forward(documents, OplogEntry::fromRawOplog);
+                }
+                return;
+            }
+            try (MongoCursor<Document> documents = oplogDocuments(oplogDatabase, position, run.namespaces, Document.class).iterator()) {
+                forward(documents, OplogEntry::fromOplog);
+            }
+        }
+
+        private <T> void forward(MongoCursor<T> cursor, Function<T, OplogEntry> toEntry) {
+            // Wait for entries at most for the server await time, so that a stop request is noticed quickly
+            while (!run.isStopping()) {
+                T next = cursor.tryNext();
+                if (next == null) {
+                    if (cursor.getServerCursor() == null) {
+                        return;
+                    }
+                    continue;
+                }
+                OplogEntry entry = toEntry.apply(next);
+                entry.setSource(source);
+                if (!run.enqueue(run.readQueue, entry)) {
+                    return;
+                }
+                lastRead = entry;
+                readOperations.increment();
+            }
+        }
+    }
+
+    /**
+     * State of a single {@link #watch} call. Its stages only ever look at their own run, so that a stage still
+     * finishing can't leak into the next run.
+     */
+    private class StreamingRun {
+        private final Collection<String> namespaces;
+        private final Predicate<OplogEntry> alreadyApplied;
+        private final BooleanSupplier stopRequested;
+        private final BlockingQueue<OplogEntry> readQueue = new ArrayBlockingQueue<>(readBufferSize);
+        private final BlockingQueue<PreparedBatch> writeQueue = new ArrayBlockingQueue<>(writeBufferSize);
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final List<Thread> stages = new ArrayList<>();
+        private volatile boolean stopped;
+
+        private StreamingRun(Collection<String> namespaces, Predicate<OplogEntry> alreadyApplied, BooleanSupplier stopRequested) {
+            this.namespaces = namespaces;
+            this.alreadyApplied = alreadyApplied;
+            this.stopRequested = stopRequested;
+        }
+
+        /**
+         * Readers stop on a stop request, and on a failure of any stage so that what they already read gets applied.
+         */
+        private boolean isStopping() {
+            return stopped || failure.get() != null || stopRequested.getAsBoolean();
+        }
+
+        /**
+         * @param end run once the stage is over, even when it failed, to signal the next stage
+         */
+        private void startStage(String name, Runnable stage, Runnable end) {
+            Thread thread = daemon(() -> {
+                try {
+                    stage.run();
+                } catch (RuntimeException e) {
+                    if (stopped) {
+                        log.debug("Stage {} stopped after the end of the streaming", name, e);
+                    } else {
+                        log.error("Stage {} stopped", name, e);
+                        failure.compareAndSet(null, e);
+                    }
+                } finally {
+                    end.run();
+                }
+            }, name);
+            stages.add(thread);
+            thread.start();
+        }
+
+        /**
+         * Wait for room in the queue, unless the run is stopped meanwhile.
+         * @return whether the element was queued
+         */
+        private <T> boolean enqueue(BlockingQueue<T> queue, T element) {
+            try {
+                while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * @return false if the run started stopping meanwhile
+         */
+        private boolean pause(long delay) {
+            long end = System.currentTimeMillis() + delay;
+            try {
+                while (!isStopping()) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return true;
+                    }
+                    Thread.sleep(Math.min(remaining, 100));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * Readers are left to notice the stop by themselves, so that they close their cursors, at the latest when
+         * the server await time is over. Only the transformer is interrupted, it has nothing to close.
+         */
+        private void stop() {
+            stopped = true;
+            stages.stream()
+                    .filter(stage -> stage.getName().equals("oplog-transformer"))
+                    .forEach(Thread::interrupt);
+            try {
+                for (Thread stage : stages) {
+                    stage.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for the streaming stages to stop");
+            }
+        }
+    }
+
+    @Data
+    private static class PreparedOperation {
+        private final OplogEntry entry;
+        private final List<Consumer<Connector>> writes;
+    }
+
+    @Data
+    private static class PreparedBatch {
+        private final List<PreparedOperation> operations;
+        private final OplogEntry lastOperation;
+        /**
+         * Last timestamp of each shard in this batch, empty unless the shards are read separately.
+         */
+        private final Map<String, BsonTimestamp> sourceTimestamps;
+        /**
+         * Last timestamp of each namespace in this batch, empty unless the namespaces are shared between several streamers.
+         */
+        private final Map<String, BsonTimestamp> namespaceTimestamps;
+        private final int numberOfOperations;
+    }
 }
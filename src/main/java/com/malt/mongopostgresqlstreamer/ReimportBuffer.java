@@ -0,0 +1,87 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Holds back the streamed entries of the table mappings being reimported, in the order of the stream, until their
+ * rows are copied. They are kept in memory: a streamer stopped in the meantime loses them along with the reimport.
+ */
+@Service
+public class ReimportBuffer {
+
+    private static final int DRAIN_BATCH_SIZE = 1000;
+
+    private final Map<String, HeldEntries> buffers = new HashMap<>();
+
+    public synchronized void start(String mappingName, String namespace) {
+        if (buffers.containsKey(mappingName)) {
+            throw new IllegalStateException(mappingName + " is already being reimported");
+        }
+        buffers.put(mappingName, new HeldEntries(namespace));
+    }
+
+    /**
+     * Must be called in the order of the stream.
+     * @return names of the mappings holding back the entry, which must not be applied to them
+     */
+    public synchronized Set<String> offer(OplogEntry entry) {
+        if (buffers.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> mappingNames = new HashSet<>();
+        buffers.forEach((mappingName, held) -> {
+            if (held.namespace.equals(entry.getNamespace())) {
+                held.entries.add(entry);
+                mappingNames.add(mappingName);
+            }
+        });
+        return mappingNames;
+    }
+
+    /**
+     * Hand over the held back entries of a mapping in batches, until none is left: entries streamed from then on
+     * are applied as usual.
+     */
+    public void drain(String mappingName, Consumer<List<OplogEntry>> apply) {
+        try {
+            while (true) {
+                List<OplogEntry> batch;
+                synchronized (this) {
+                    List<OplogEntry> entries = buffers.get(mappingName).entries;
+                    if (entries.isEmpty()) {
+                        buffers.remove(mappingName);
+                        return;
+                    }
+                    List<OplogEntry> head = entries.subList(0, Math.min(DRAIN_BATCH_SIZE, entries.size()));
+                    batch = new ArrayList<>(head);
+                    head.clear();
+                }
+                apply.accept(batch);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                buffers.remove(mappingName);
+            }
+            throw e;
+        }
+    }
+
+    private static class HeldEntries {
+        private final String namespace;
+        private final List<OplogEntry> entries = new ArrayList<>();
+
+        private HeldEntries(String namespace) {
+            this.namespace = namespace;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.monitoring.ImportMonitor;
+import com.malt.mongopostgresqlstreamer.monitoring.TableImport;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@code POST /actuator/reimport} with a {@code mapping} name, and optionally a {@code query} on the source
+ * collection in MongoDB extended JSON, e.g. {@code {"_id": {"$gte": {"$oid": "..."}}}}.
+ * Reimports run in the background, their progress is in the {@code tables} detail of the health. A reimport is
+ * refused while another one, or the initial import, is running.
+ * Not exposed by default: add it to {@code management.endpoints.web.exposure.include}, behind some authentication.
+ */
+@Component
+@Endpoint(id = "reimport")
+@Slf4j
+public class ReimportEndpoint {
+
+    @Autowired
+    private InitialImporter initialImporter;
+    @Autowired
+    private ImportMonitor importMonitor;
+    @Autowired
+    private MappingsManager mappingsManager;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reimport");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @WriteOperation
+    public synchronized Map<String, Object> reimport(String mapping, @Nullable String query) {
+        boolean mapped = mappingsManager.mappingConfigs.getDatabaseMappings().stream()
+                .anyMatch(databaseMapping -> databaseMapping.get(mapping).isPresent());
+        if (!mapped) {
+            throw new IllegalArgumentException("No defined mapping for mappingName " + mapping + ".");
+        }
+        if (initialImporter.isImporting() || importMonitor.isRunning()) {
+            throw new IllegalStateException("An import is running, try again once it is done");
+        }
+        Document filter = query == null ? null : Document.parse(query);
+        importMonitor.pending(mapping);
+        executor.submit(() -> {
+            try {
+                initialImporter.reimport(mapping, filter);
+            } catch (RuntimeException e) {
+                log.error("Unable to reimport {}", mapping, e);
+                importMonitor.failed(mapping);
+            }
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mapping", mapping);
+        result.put("query", filter);
+        result.put("status", TableImport.Status.PENDING);
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,82 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.Shard;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Lists the shards of the cluster {@code mongo.uri} points to (through mongos), and connects to each of them
+ * with the credentials and options of this uri.
+ */
+@Service
+@Slf4j
+public class ShardDiscovery {
+
+    @Value(value = "${mongo.uri:mongodb://localhost:27017}")
+    private String uri;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    private List<Shard> shards;
+
+    public synchronized List<Shard> getShards() {
+        if (shards == null) {
+            shards = discover();
+        }
+        return shards;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (shards != null) {
+            shards.forEach(shard -> shard.getClient().close());
+        }
+    }
+
+    private List<Shard> discover() {
+        MongoClientURI clientUri = new MongoClientURI(uri);
+        List<Shard> discovered = new ArrayList<>();
+        for (Document shard : mongoClient.getDatabase("config").getCollection("shards").find()) {
+            // Hosts are listed as <replica set>/<host:port>,<host:port>...
+            String name = shard.getString("_id");
+            String hosts = shard.getString("host");
+            int separator = hosts.indexOf('/');
+            List<ServerAddress> seeds = Arrays.stream(hosts.substring(separator + 1).split(","))
+                    .map(ServerAddress::new)
+                    .collect(toList());
+
+            MongoClientOptions.Builder options = MongoClientOptions.builder(clientUri.getOptions());
+            if (separator > 0) {
+                options.requiredReplicaSetName(hosts.substring(0, separator));
+            }
+            MongoCredential credential = clientUri.getCredentials();
+            MongoClient client = credential == null
+                    ? new MongoClient(seeds, options.build())
+                    : new MongoClient(seeds, credential, options.build());
+
+            log.info("Shard {} found on {}", name, hosts);
+            discovered.add(new Shard(name, client));
+        }
+
+        if (discovered.isEmpty()) {
+            throw new IllegalStateException("No shard found in config.shards. Maybe mongo.uri doesn't point to a mongos");
+        }
+        return discovered;
+    }
+}
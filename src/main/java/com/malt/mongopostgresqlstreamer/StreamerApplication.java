@@ -1,5 +1,7 @@
 package com.malt.mongopostgresqlstreamer;
 
+import com.malt.mongopostgresqlstreamer.cluster.ClusteredStreaming;
+import com.malt.mongopostgresqlstreamer.cluster.LeaseManager;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.BsonTimestamp;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -7,6 +9,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.*;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Date;
 import java.util.Optional;
 
 @SpringBootApplication
@@ -26,31 +29,83 @@ public class StreamerApplication implements ApplicationRunner {
     private InitialImporter initialImporter;
     @Autowired
     private CheckpointManager checkpointManager;
+    @Autowired
+    private LeaseManager leaseManager;
+    @Autowired
+    private ClusteredStreaming clusteredStreaming;
 
     @Override
     public void run(ApplicationArguments args) {
+        Optional<BsonTimestamp> checkpoint = leaseManager.isEnabled() ? importOnce() : importIfNeeded();
+
+        try {
+            if (leaseManager.isEnabled()) {
+                clusteredStreaming.watch(checkpoint);
+            } else {
+                oplogStreamer.watchFromCheckpoint(checkpoint);
+            }
+        } catch (IllegalStateException e) {
+            // state should be: open is throw when the application is stopped and the connection pool stop
+            // this is not an error however
+            if (!e.getMessage().contains("state should be: open")) {
+                throw e;
+            }
+        }
+    }
+
+    private Optional<BsonTimestamp> importIfNeeded() {
         Optional<BsonTimestamp> checkpoint = checkpointManager.getLastKnown();
 
         if (!checkpoint.isPresent() || forceReimport) {
-            log.info("No checkpoint found, we will perform a initial load");
-            checkpoint = Optional.of(checkpointManager.getLastOplog());
-            log.info("Last oplog found have timestamp : {}", checkpoint.get().toString());
-            checkpointManager.storeImportStart();
+            Optional<BsonTimestamp> interruptedImport = forceReimport || !initialImporter.isResumable()
+                    ? Optional.empty()
+                    : checkpointManager.getInterruptedImport();
             long start = System.currentTimeMillis();
-            initialImporter.start();
+            if (interruptedImport.isPresent()) {
+                // The oplog is still read from the position taken before the import started
+                log.info("Resuming the initial load started at timestamp : {}", interruptedImport.get().toString());
+                checkpoint = Optional.of(initialImporter.resume(interruptedImport.get()));
+            } else {
+                log.info("No checkpoint found, we will perform a initial load");
+                BsonTimestamp position = checkpointManager.getCurrentPosition();
+                log.info("Last oplog found have timestamp : {}", position.toString());
+                checkpointManager.storeImportStart(position);
+                checkpoint = Optional.of(initialImporter.start(position));
+            }
             long end = System.currentTimeMillis();
             long length = end - start;
             checkpointManager.keep(checkpoint.get());
+            checkpointManager.flush();
             checkpointManager.storeImportEnd(length);
         }
+        return checkpoint;
+    }
 
-        try {
-            oplogStreamer.watchFromCheckpoint(checkpoint);
-        } catch (IllegalStateException e) {
-            // state should be: open is throw when the application is stopped and the connection pool stop
-            // this is not an error however
-            if (!e.getMessage().contains("state should be: open")) {
-                throw e;
+    /**
+     * In cluster mode, a single streamer performs the initial load while the others wait for it. Streamers started
+     * together with {@code forcereimport} don't import again once one of them did.
+     */
+    private Optional<BsonTimestamp> importOnce() {
+        Optional<Date> previousImportEnd = checkpointManager.getImportEnd();
+        while (true) {
+            if (leaseManager.tryLock(LeaseManager.IMPORT_LEASE)) {
+                try {
+                    Optional<Date> importEnd = checkpointManager.getImportEnd();
+                    if (importEnd.isPresent() && !importEnd.equals(previousImportEnd)) {
+                        log.info("Another streamer performed the initial load while we were waiting for it");
+                        return checkpointManager.getLastKnown();
+                    }
+                    return importIfNeeded();
+                } finally {
+                    leaseManager.unlock(LeaseManager.IMPORT_LEASE);
+                }
+            }
+            log.info("Another streamer is performing the initial load, waiting for it");
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return checkpointManager.getLastKnown();
             }
         }
     }
@@ -0,0 +1,80 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.malt.mongopostgresqlstreamer.model.Route;
+import com.mongodb.Block;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Fetches the updated documents of a batch of oplog entries with one `$in` query per collection
+ * instead of one query per update.
+ */
+@Service
+@Slf4j
+public class UpdateLookup {
+
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    @Value(value = "${mongo.connector.lookup.batched:true}")
+    private boolean batched;
+
+    @Autowired
+    private MappingsManager mappingsManager;
+    @Autowired
+    private MongoClient mongoClient;
+
+    public void prefetch(List<OplogEntry> entries, Predicate<OplogEntry> needsLookup) {
+        if (!batched) {
+            return;
+        }
+
+        Map<String, List<OplogEntry>> updatesByNamespace = entries.stream()
+                .filter(entry -> "u".equals(entry.getOperation()))
+                .filter(entry -> entry.getDocumentId() != null)
+                .filter(needsLookup)
+                .collect(groupingBy(OplogEntry::getNamespace, LinkedHashMap::new, toList()));
+
+        updatesByNamespace.values().forEach(this::fetch);
+    }
+
+    private void fetch(List<OplogEntry> updates) {
+        OplogEntry first = updates.get(0);
+        List<Route> routes = mappingsManager.routesFor(first.getNamespace());
+        if (routes.isEmpty()) {
+            return;
+        }
+
+        Set<String> projection = new LinkedHashSet<>();
+        routes.forEach(route -> projection.addAll(route.getTableMapping().getProjectedPaths()));
+
+        List<Object> ids = new ArrayList<>(new LinkedHashSet<>(updates.stream().map(OplogEntry::getDocumentId).collect(toList())));
+        MongoCollection<Document> collection = mongoClient.getDatabase(first.getDatabase()).getCollection(first.getCollection());
+        Map<Object, Document> documentsById = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<Object> chunk = ids.subList(from, Math.min(from + MAX_IDS_PER_QUERY, ids.size()));
+            collection.find(in("_id", chunk))
+                    .projection(include(new ArrayList<>(projection)))
+                    .forEach((Block<Document>) document -> documentsById.put(document.get("_id"), document));
+        }
+        log.debug("{} updated documents fetched from {} in a single lookup", documentsById.size(), first.getNamespace());
+
+        for (OplogEntry update : updates) {
+            update.setFullDocument(documentsById.get(update.getDocumentId()));
+            update.setLookedUp(true);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.util.*;
+
+/**
+ * Collapses the operations of a batch that target the same document so that only its final state is written.
+ */
+@Service
+@Slf4j
+public class WriteCoalescer {
+
+    private final boolean enabled;
+    private final Counter receivedOperations;
+    private final Counter collapsedOperations;
+
+    @Inject
+    public WriteCoalescer(
+            @Value("${mongo.connector.coalesce:true}") boolean enabled,
+            MeterRegistry meterRegistry) {
+
+        this.enabled = enabled;
+        this.receivedOperations = meterRegistry.counter("streamer.coalescing.received");
+        this.collapsedOperations = meterRegistry.counter("streamer.coalescing.collapsed");
+    }
+
+    /**
+     * A sequence of operations on a document ending with a delete becomes this delete. A sequence ending with an
+     * insert becomes this insert. Any other sequence ends with an update and becomes an update that must read the
+     * final state of the document, since the last update alone may only describe part of the changes.
+     * Each remaining operation keeps the position of the last operation of its document in the batch.
+     */
+    public List<OplogEntry> coalesce(List<OplogEntry> entries) {
+        receivedOperations.increment(entries.size());
+        if (!enabled) {
+            return entries;
+        }
+
+        List<List<Object>> keys = new ArrayList<>(entries.size());
+        Map<List<Object>, Integer> lastPositions = new HashMap<>();
+        Map<List<Object>, Integer> operationCounts = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            List<Object> key = keyOf(entries.get(i));
+            keys.add(key);
+            lastPositions.put(key, i);
+            operationCounts.merge(key, 1, Integer::sum);
+        }
+
+        List<OplogEntry> coalesced = new ArrayList<>(lastPositions.size());
+        for (int i = 0; i < entries.size(); i++) {
+            OplogEntry entry = entries.get(i);
+            List<Object> key = keys.get(i);
+            if (lastPositions.get(key) != i) {
+                continue;
+            }
+            if (operationCounts.get(key) > 1 && "u".equals(entry.getOperation())) {
+                entry.setCoalesced(true);
+            }
+            coalesced.add(entry);
+        }
+
+        int collapsed = entries.size() - coalesced.size();
+        if (collapsed > 0) {
+            collapsedOperations.increment(collapsed);
+            log.debug("{} operations collapsed out of {}", collapsed, entries.size());
+        }
+        return coalesced;
+    }
+
+    private static List<Object> keyOf(OplogEntry entry) {
+        if (entry.getDocumentId() == null) {
+            // Can't tell which document it is about, keep it as is
+            return Arrays.asList(entry.getNamespace(), new Object());
+        }
+        return Arrays.asList(entry.getNamespace(), entry.getDocumentId());
+    }
+}
@@ -0,0 +1,18 @@
+package com.malt.mongopostgresqlstreamer.checkpoints;
+
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+
+import java.util.Optional;
+
+/**
+ * Where the position of the last applied operations is persisted, selected with {@code mongo.connector.checkpoint.store}.
+ */
+public interface CheckpointStore {
+
+    /**
+     * Position from which the streaming must resume, empty if nothing was ever applied.
+     */
+    Optional<Checkpoint> load();
+
+    void save(Checkpoint checkpoint);
+}
@@ -0,0 +1,126 @@
+package com.malt.mongopostgresqlstreamer.checkpoints;
+
+import com.malt.mongopostgresqlstreamer.model.ImportRange;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps the progress of the initial import in PostgreSQL, one row per range of each table mapping. A range is saved
+ * by the transaction copying its rows, so that an interrupted import resumes right after the last rows committed.
+ */
+@Service
+public class ImportProgressStore {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String identifier;
+    private final String table;
+
+    @Inject
+    public ImportProgressStore(
+            JdbcTemplate jdbcTemplate,
+            @Value("${mongo.connector.identifier:test}") String identifier,
+            @Value("${mongo.connector.import.table:mongo_streamer_import}") String table) {
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.identifier = identifier;
+        this.table = table;
+    }
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(format(
+                "CREATE TABLE IF NOT EXISTS %s (" +
+                        "identifier TEXT NOT NULL, mapping_name TEXT NOT NULL, range_index INTEGER NOT NULL, " +
+                        "range_filter TEXT NOT NULL, last_id TEXT, rows BIGINT NOT NULL, done BOOLEAN NOT NULL, " +
+                        "finalized BOOLEAN NOT NULL DEFAULT FALSE, PRIMARY KEY (identifier, mapping_name, range_index))",
+                table
+        ));
+    }
+
+    /**
+     * Forget the progress of the previous import, before a new one.
+     */
+    public void clear() {
+        jdbcTemplate.update(format("DELETE FROM %s WHERE identifier = ?", table), identifier);
+    }
+
+    /**
+     * Ranges of a table mapping, empty if its import never started.
+     */
+    public List<ImportRange> ranges(String mappingName) {
+        return jdbcTemplate.query(
+                format("SELECT mapping_name, range_index, range_filter, last_id, rows, done FROM %s " +
+                        "WHERE identifier = ? AND mapping_name = ? ORDER BY range_index", table),
+                (resultSet, rowNumber) -> toImportRange(resultSet),
+                identifier, mappingName
+        );
+    }
+
+    public void start(List<ImportRange> ranges) {
+        for (ImportRange range : ranges) {
+            jdbcTemplate.update(
+                    format("INSERT INTO %s (identifier, mapping_name, range_index, range_filter, rows, done) " +
+                            "VALUES (?, ?, ?, ?, 0, FALSE)", table),
+                    identifier, range.getMappingName(), range.getIndex(), range.getFilter().toJson()
+            );
+        }
+    }
+
+    /**
+     * Must be called by the transaction copying the rows of the range.
+     */
+    public void save(ImportRange range) {
+        jdbcTemplate.update(
+                format("UPDATE %s SET last_id = ?, rows = ?, done = ? " +
+                        "WHERE identifier = ? AND mapping_name = ? AND range_index = ?", table),
+                range.getLastId() == null ? null : new Document("_id", range.getLastId()).toJson(),
+                range.getRows(), range.isDone(),
+                identifier, range.getMappingName(), range.getIndex()
+        );
+    }
+
+    /**
+     * True once the constraints of the table mapping were added.
+     */
+    public boolean isFinalized(String mappingName) {
+        Integer finalized = jdbcTemplate.queryForObject(
+                format("SELECT COUNT(*) FROM %s WHERE identifier = ? AND mapping_name = ? AND finalized", table),
+                Integer.class,
+                identifier, mappingName
+        );
+        return finalized != null && finalized > 0;
+    }
+
+    /**
+     * Must be called by the transaction adding the constraints of the table mapping.
+     */
+    public void finalized(String mappingName) {
+        jdbcTemplate.update(
+                format("UPDATE %s SET finalized = TRUE WHERE identifier = ? AND mapping_name = ?", table),
+                identifier, mappingName
+        );
+    }
+
+    private static ImportRange toImportRange(ResultSet resultSet) throws SQLException {
+        ImportRange range = new ImportRange(
+                resultSet.getString("mapping_name"),
+                resultSet.getInt("range_index"),
+                Document.parse(resultSet.getString("range_filter"))
+        );
+        String lastId = resultSet.getString("last_id");
+        range.setLastId(lastId == null ? null : Document.parse(lastId).get("_id"));
+        range.setRows(resultSet.getLong("rows"));
+        range.setDone(resultSet.getBoolean("done"));
+        return range;
+    }
+}
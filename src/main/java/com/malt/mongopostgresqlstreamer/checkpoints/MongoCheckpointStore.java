@@ -0,0 +1,81 @@
+package com.malt.mongopostgresqlstreamer.checkpoints;
+
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonElement;
+import org.bson.BsonTimestamp;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps the checkpoint in the mongooplog collection of the administrative database.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "mongo.connector.checkpoint.store", havingValue = "mongo", matchIfMissing = true)
+public class MongoCheckpointStore implements CheckpointStore {
+
+    @Value(value = "${mongo.connector.identifier:test}")
+    private String identifier;
+
+    @Autowired
+    @Qualifier("database")
+    private MongoDatabase database;
+
+    @Override
+    public Optional<Checkpoint> load() {
+        MongoCollection<BsonDocument> oplogOffset = database.getCollection("mongooplog", BsonDocument.class);
+        BsonDocument lastProcessedOplog = oplogOffset.find(eq("_id", identifier)).first();
+        if (lastProcessedOplog == null || !lastProcessedOplog.isTimestamp("ts")) {
+            return Optional.empty();
+        }
+        BsonTimestamp timestamp = lastProcessedOplog.getTimestamp("ts");
+        BsonDocument resumeToken = lastProcessedOplog.isDocument("resumeToken") ? lastProcessedOplog.getDocument("resumeToken") : null;
+        Map<String, BsonTimestamp> shardTimestamps = new HashMap<>();
+        if (lastProcessedOplog.isDocument("shards")) {
+            lastProcessedOplog.getDocument("shards").forEach((shard, shardTimestamp) -> {
+                if (shardTimestamp.isTimestamp()) {
+                    shardTimestamps.put(shard, shardTimestamp.asTimestamp());
+                }
+            });
+        }
+        return Optional.of(new Checkpoint(timestamp, resumeToken, shardTimestamps));
+    }
+
+    @Override
+    public void save(Checkpoint checkpoint) {
+        MongoCollection<BsonDocument> collection = database.getCollection("mongooplog", BsonDocument.class);
+        // A plain timestamp always supersedes a previous change stream position
+        Bson resumeToken = checkpoint.getResumeToken() == null
+                ? unset("resumeToken")
+                : set("resumeToken", checkpoint.getResumeToken());
+        Bson shards = checkpoint.getShardTimestamps().isEmpty()
+                ? unset("shards")
+                : set("shards", new BsonDocument(checkpoint.getShardTimestamps().entrySet().stream()
+                        .map(shard -> new BsonElement(shard.getKey(), shard.getValue()))
+                        .collect(toList())));
+        collection.updateOne(eq("_id", identifier), combine(
+                set("ts", checkpoint.getTimestamp()),
+                resumeToken,
+                shards
+        ), new UpdateOptions().upsert(true));
+    }
+}
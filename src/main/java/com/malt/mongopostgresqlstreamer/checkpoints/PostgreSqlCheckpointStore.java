@@ -0,0 +1,144 @@
+package com.malt.mongopostgresqlstreamer.checkpoints;
+
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps the checkpoint in PostgreSQL, written by the transactions applying the operations so that the replicated
+ * rows and their position can't diverge.
+ * Each apply lane commits on its own, so each lane has its own row: the streaming resumes from the oldest one and
+ * skips the entries of the other lanes that are already committed.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "mongo.connector.checkpoint.store", havingValue = "postgresql")
+public class PostgreSqlCheckpointStore implements TransactionalCheckpointStore {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final String identifier;
+    private final String table;
+    private final int numberOfLanes;
+
+    @Inject
+    public PostgreSqlCheckpointStore(
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            @Value("${mongo.connector.identifier:test}") String identifier,
+            @Value("${mongo.connector.checkpoint.table:mongo_streamer_checkpoint}") String table,
+            @Value("${mongo.connector.apply.lanes:1}") int numberOfLanes) {
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.identifier = identifier;
+        this.table = table;
+        this.numberOfLanes = Math.max(1, numberOfLanes);
+    }
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(format(
+                "CREATE TABLE IF NOT EXISTS %s (" +
+                        "identifier TEXT NOT NULL, lane INTEGER NOT NULL, lanes INTEGER NOT NULL, " +
+                        "ts BIGINT NOT NULL, resume_token TEXT, PRIMARY KEY (identifier, lane))",
+                table
+        ));
+    }
+
+    @Override
+    public Optional<Checkpoint> load() {
+        List<LaneCheckpoint> lanes = loadLanes();
+        return lanes.isEmpty() ? Optional.empty() : Optional.of(lanes.get(0).getCheckpoint());
+    }
+
+    /**
+     * Set the same position for every lane, outside of the streaming (after an import for instance).
+     */
+    @Override
+    public void save(Checkpoint checkpoint) {
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.update(format("DELETE FROM %s WHERE identifier = ?", table), identifier);
+            for (int lane = 0; lane < numberOfLanes; lane++) {
+                saveInTransaction(lane, checkpoint);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void saveInTransaction(int lane, Checkpoint checkpoint) {
+        String resumeToken = checkpoint.getResumeToken() == null ? null : checkpoint.getResumeToken().toJson();
+        jdbcTemplate.update(
+                format("INSERT INTO %s (identifier, lane, lanes, ts, resume_token) VALUES (?, ?, ?, ?, ?) " +
+                        "ON CONFLICT (identifier, lane) DO UPDATE SET lanes = ?, ts = ?, resume_token = ?", table),
+                identifier, lane, numberOfLanes, checkpoint.getTimestamp().getValue(), resumeToken,
+                numberOfLanes, checkpoint.getTimestamp().getValue(), resumeToken
+        );
+    }
+
+    @Override
+    public Predicate<OplogEntry> alreadyApplied() {
+        List<LaneCheckpoint> lanes = loadLanes();
+        boolean sameLanes = lanes.size() == numberOfLanes
+                && lanes.stream().allMatch(lane -> lane.getLanes() == numberOfLanes && lane.getLane() < numberOfLanes);
+        if (!sameLanes) {
+            // Entries are dispatched differently now, the position of each lane can't be trusted anymore
+            if (!lanes.isEmpty()) {
+                log.info("Number of apply lanes changed, every lane resumes from {}", lanes.get(0).getCheckpoint().getTimestamp());
+                save(lanes.get(0).getCheckpoint());
+            }
+            return entry -> false;
+        }
+
+        BsonTimestamp[] committed = new BsonTimestamp[numberOfLanes];
+        lanes.forEach(lane -> committed[lane.getLane()] = lane.getCheckpoint().getTimestamp());
+        return entry -> entry.getTimestamp().compareTo(committed[entry.partition(numberOfLanes)]) <= 0;
+    }
+
+    /**
+     * Lanes of this streamer, oldest position first.
+     */
+    private List<LaneCheckpoint> loadLanes() {
+        return jdbcTemplate.query(
+                format("SELECT lane, lanes, ts, resume_token FROM %s WHERE identifier = ? ORDER BY ts", table),
+                (resultSet, rowNumber) -> toLaneCheckpoint(resultSet),
+                identifier
+        );
+    }
+
+    private static LaneCheckpoint toLaneCheckpoint(ResultSet resultSet) throws SQLException {
+        String resumeToken = resultSet.getString("resume_token");
+        Checkpoint checkpoint = new Checkpoint(
+                new BsonTimestamp(resultSet.getLong("ts")),
+                resumeToken == null ? null : BsonDocument.parse(resumeToken)
+        );
+        return new LaneCheckpoint(resultSet.getInt("lane"), resultSet.getInt("lanes"), checkpoint);
+    }
+
+    @Data
+    private static class LaneCheckpoint {
+        private final int lane;
+        private final int lanes;
+        private final Checkpoint checkpoint;
+    }
+}
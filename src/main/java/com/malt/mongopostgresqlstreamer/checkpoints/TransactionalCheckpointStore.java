@@ -0,0 +1,22 @@
+package com.malt.mongopostgresqlstreamer.checkpoints;
+
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+
+import java.util.function.Predicate;
+
+/**
+ * A store writing the checkpoint in the transaction applying the operations, instead of having it saved afterwards.
+ */
+public interface TransactionalCheckpointStore extends CheckpointStore {
+
+    /**
+     * Must be called by the transaction applying the operations of the lane.
+     */
+    void saveInTransaction(int lane, Checkpoint checkpoint);
+
+    /**
+     * Entries read again after a restart but whose changes were committed already.
+     */
+    Predicate<OplogEntry> alreadyApplied();
+}
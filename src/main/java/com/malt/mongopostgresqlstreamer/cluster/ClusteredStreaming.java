@@ -0,0 +1,87 @@
+package com.malt.mongopostgresqlstreamer.cluster;
+
+import com.malt.mongopostgresqlstreamer.CheckpointManager;
+import com.malt.mongopostgresqlstreamer.OplogStreamer;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonTimestamp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Streams the namespaces leased by this streamer, from the position stored with each lease.
+ * Whenever the leases must be balanced again, the streaming stops once the operations read so far are applied,
+ * and restarts with the new set of namespaces. So does a lease lost while streaming: the operations of its namespace
+ * read so far are dropped.
+ */
+@Service
+@Slf4j
+public class ClusteredStreaming {
+
+    @Value(value = "${mongo.connector.ingestion:oplog}")
+    private String ingestion;
+
+    @Value(value = "${mongo.connector.cluster.heartbeat:5000}")
+    private long heartbeatInterval;
+
+    @Autowired
+    private LeaseManager leaseManager;
+    @Autowired
+    private OplogStreamer oplogStreamer;
+    @Autowired
+    private CheckpointManager checkpointManager;
+
+    /**
+     * @param checkpoint position of the namespaces never streamed yet, usually the end of the initial import
+     */
+    public void watch(Optional<BsonTimestamp> checkpoint) {
+        if (!"oplog".equals(ingestion) || checkpointManager.isTransactional()) {
+            throw new IllegalStateException("The cluster mode only supports the oplog ingestion with the mongo checkpoint store");
+        }
+
+        while (!Thread.currentThread().isInterrupted()) {
+            Set<String> namespaces = leaseManager.balance();
+            if (namespaces.isEmpty()) {
+                sleep();
+                continue;
+            }
+
+            Map<String, BsonTimestamp> positions = new HashMap<>(leaseManager.positions(namespaces));
+            checkpoint.ifPresent(timestamp -> namespaces.forEach(namespace -> positions.putIfAbsent(namespace, timestamp)));
+            // A single cursor for every namespace: start from the oldest one and skip what the others already applied
+            Optional<BsonTimestamp> start = positions.size() < namespaces.size()
+                    ? Optional.empty()
+                    : Optional.of(Collections.min(positions.values()));
+            Predicate<OplogEntry> alreadyApplied = entry -> {
+                BsonTimestamp position = positions.get(entry.getNamespace());
+                return position != null && entry.getTimestamp().compareTo(position) <= 0;
+            };
+
+            log.info("Streaming {} namespaces from {}", namespaces.size(), start.map(BsonTimestamp::toString).orElse("the start of the oplog"));
+            try {
+                oplogStreamer.watch(start, namespaces, alreadyApplied, leaseManager::isRebalanceRequested);
+            } catch (LeaseLostException e) {
+                // Its new owner resumes from the last position we stored, the other namespaces from ours
+                log.warn("Streaming stopped: {}", e.getMessage());
+            } finally {
+                leaseManager.flushPositions();
+            }
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(heartbeatInterval);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
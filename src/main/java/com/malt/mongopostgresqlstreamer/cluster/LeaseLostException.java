@@ -0,0 +1,11 @@
+package com.malt.mongopostgresqlstreamer.cluster;
+
+/**
+ * Thrown by a transaction applying operations of a namespace this streamer doesn't hold anymore.
+ */
+public class LeaseLostException extends RuntimeException {
+
+    public LeaseLostException(String namespace, String reason) {
+        super("Lease on " + namespace + " " + reason);
+    }
+}
@@ -0,0 +1,411 @@
+package com.malt.mongopostgresqlstreamer.cluster;
+
+import com.malt.mongopostgresqlstreamer.MappingsManager;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.setOnInsert;
+import static java.lang.String.format;
+
+/**
+ * Shares the mapped namespaces between the streamers using the same identifier, when
+ * {@code mongo.connector.cluster.enabled} is set.
+ * Each namespace has a lease in the mongoleases collection of the administrative database, held by one streamer
+ * and renewed by its heartbeat along with its membership in the mongonodes collection. Every streamer aims for an
+ * even share of the namespaces: leases of a streamer that stops renewing them expire and are taken over by the others.
+ * A lease also holds the position of its namespace, so whoever owns it next resumes from there.
+ * Each acquisition bumps the epoch of the lease, copied to a fencing table in PostgreSQL. The transactions applying
+ * operations check it, so that a streamer whose lease was taken over can't commit anything for this namespace anymore.
+ */
+@Service
+@Slf4j
+public class LeaseManager {
+
+    public static final String IMPORT_LEASE = "_import";
+
+    private static final String LEASES = "mongoleases";
+    private static final String NODES = "mongonodes";
+
+    @Value(value = "${mongo.connector.cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value(value = "${mongo.connector.cluster.node:}")
+    private String node;
+
+    @Value(value = "${mongo.connector.cluster.lease:30000}")
+    private long leaseDuration;
+
+    @Value(value = "${mongo.connector.cluster.heartbeat:5000}")
+    private long heartbeatInterval;
+
+    @Value(value = "${mongo.connector.identifier:test}")
+    private String identifier;
+
+    @Value(value = "${mongo.connector.cluster.fencing.table:mongo_streamer_lease}")
+    private String fencingTable;
+
+    @Autowired
+    @Qualifier("database")
+    private MongoDatabase database;
+    @Autowired
+    private MappingsManager mappingsManager;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final Set<String> ownedNamespaces = ConcurrentHashMap.newKeySet();
+    /**
+     * Epoch of each owned namespace, and when its lease was last renewed.
+     */
+    private final Map<String, Long> epochs = new ConcurrentHashMap<>();
+    private final Map<String, Long> renewals = new ConcurrentHashMap<>();
+    private final Set<String> ownedLocks = ConcurrentHashMap.newKeySet();
+    private final Map<String, BsonTimestamp> positions = new ConcurrentHashMap<>();
+    private final AtomicBoolean rebalanceRequested = new AtomicBoolean();
+    private volatile long lastRenewal;
+    private ScheduledExecutorService heartbeat;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        if (node.isEmpty()) {
+            node = hostname() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        log.info("Cluster mode enabled, this streamer is {}", node);
+        jdbcTemplate.execute(format(
+                "CREATE TABLE IF NOT EXISTS %s (" +
+                        "identifier TEXT NOT NULL, name TEXT NOT NULL, epoch BIGINT NOT NULL, PRIMARY KEY (identifier, name))",
+                fencingTable
+        ));
+        lastRenewal = System.currentTimeMillis();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::heartbeatQuietly, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        heartbeat.shutdown();
+        try {
+            flushPositions();
+            new ArrayList<>(ownedNamespaces).forEach(this::release);
+            new ArrayList<>(ownedLocks).forEach(this::release);
+            nodes().deleteOne(eq("_id", memberId()));
+        } catch (RuntimeException e) {
+            log.warn("Unable to release the leases of {}, they will expire", node, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Acquire a lease that isn't a namespace, to make sure a single streamer does something.
+     */
+    public boolean tryLock(String name) {
+        if (acquire(name)) {
+            ownedLocks.add(name);
+            return true;
+        }
+        return false;
+    }
+
+    public void unlock(String name) {
+        release(name);
+    }
+
+    /**
+     * Release the namespaces beyond the fair share of this streamer, then acquire free ones up to this share.
+     * Must only be called while these namespaces aren't streamed.
+     * @return the namespaces this streamer owns
+     */
+    public Set<String> balance() {
+        rebalanceRequested.set(false);
+        List<String> namespaces = mappingsManager.mappedNamespaces();
+        namespaces.forEach(this::createLease);
+        int share = fairShare(namespaces.size());
+
+        flushPositions();
+        List<String> owned = new ArrayList<>(ownedNamespaces);
+        Collections.sort(owned);
+        for (int i = share; i < owned.size(); i++) {
+            release(owned.get(i));
+        }
+        for (String namespace : namespaces) {
+            if (ownedNamespaces.size() >= share) {
+                break;
+            }
+            if (!ownedNamespaces.contains(namespace) && acquireNamespace(namespace)) {
+                ownedNamespaces.add(namespace);
+            }
+        }
+
+        log.info("{} owns {} namespaces out of {} (fair share: {})", node, ownedNamespaces.size(), namespaces.size(), share);
+        return new TreeSet<>(ownedNamespaces);
+    }
+
+    /**
+     * True once the namespaces owned by this streamer must change, streaming them must then stop.
+     */
+    public boolean isRebalanceRequested() {
+        return rebalanceRequested.get();
+    }
+
+    /**
+     * Must be called by the transactions applying operations of these namespaces, before any write: fails if one of
+     * them isn't held anymore, or wasn't renewed within the lease duration. The fencing rows stay locked until the
+     * transaction ends, so a streamer taking a lease over waits for the transactions of the previous owner.
+     */
+    public void checkLeases(Collection<String> namespaces) {
+        for (String namespace : namespaces) {
+            Long epoch = epochs.get(namespace);
+            if (epoch == null || !ownedNamespaces.contains(namespace)) {
+                throw new LeaseLostException(namespace, "is not held by " + node);
+            }
+            if (System.currentTimeMillis() - renewals.getOrDefault(namespace, 0L) > leaseDuration) {
+                rebalanceRequested.set(true);
+                throw new LeaseLostException(namespace, "was not renewed in time by " + node);
+            }
+            List<Long> fencedEpoch = jdbcTemplate.queryForList(
+                    format("SELECT epoch FROM %s WHERE identifier = ? AND name = ? FOR SHARE", fencingTable),
+                    Long.class, identifier, namespace
+            );
+            if (fencedEpoch.size() != 1 || fencedEpoch.get(0) != epoch.longValue()) {
+                log.warn("Lease of {} on {} was taken over", node, namespace);
+                forget(namespace);
+                rebalanceRequested.set(true);
+                throw new LeaseLostException(namespace, "was taken over by another streamer");
+            }
+        }
+    }
+
+    /**
+     * Positions stored in the leases of the given namespaces, absent for namespaces never streamed yet.
+     */
+    public Map<String, BsonTimestamp> positions(Collection<String> namespaces) {
+        Map<String, BsonTimestamp> stored = new HashMap<>();
+        for (Document lease : leases().find(in("_id", namespaces.stream().map(this::leaseId).toArray()))) {
+            BsonTimestamp position = lease.get("ts", BsonTimestamp.class);
+            if (position != null) {
+                stored.put(lease.getString("name"), position);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Remember the positions of the last applied operations, written to the leases by the next heartbeat.
+     */
+    public void keep(Map<String, BsonTimestamp> namespaceTimestamps) {
+        positions.putAll(namespaceTimestamps);
+    }
+
+    public synchronized void flushPositions() {
+        for (Map.Entry<String, BsonTimestamp> position : new ArrayList<>(positions.entrySet())) {
+            leases().updateOne(
+                    and(eq("_id", leaseId(position.getKey())), eq("owner", node)),
+                    set("ts", position.getValue())
+            );
+            positions.remove(position.getKey(), position.getValue());
+        }
+    }
+
+    private void heartbeatQuietly() {
+        try {
+            heartbeat();
+        } catch (RuntimeException e) {
+            log.error("Heartbeat of {} failed", node, e);
+            if (System.currentTimeMillis() - lastRenewal > leaseDuration) {
+                // Our leases may have been taken over already, stop streaming them
+                log.warn("Leases of {} couldn't be renewed in time, giving them up", node);
+                new ArrayList<>(ownedNamespaces).forEach(this::forget);
+                rebalanceRequested.set(true);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        nodes().updateOne(eq("_id", memberId()), combine(
+                set("identifier", identifier),
+                set("node", node),
+                set("expiresAt", expiration())
+        ), new UpdateOptions().upsert(true));
+
+        flushPositions();
+        for (String name : ownedLocks) {
+            renew(name);
+        }
+        for (String namespace : ownedNamespaces) {
+            long renewal = System.currentTimeMillis();
+            if (renew(namespace)) {
+                renewals.put(namespace, renewal);
+            } else {
+                log.warn("Lease of {} on {} was lost", node, namespace);
+                forget(namespace);
+                rebalanceRequested.set(true);
+            }
+        }
+        lastRenewal = System.currentTimeMillis();
+
+        List<String> namespaces = mappingsManager.mappedNamespaces();
+        int share = fairShare(namespaces.size());
+        if (ownedNamespaces.size() > share || (ownedNamespaces.size() < share && freeLeaseExists(namespaces))) {
+            rebalanceRequested.set(true);
+        }
+    }
+
+    private int fairShare(int numberOfNamespaces) {
+        long liveNodes = Math.max(1, nodes().countDocuments(and(eq("identifier", identifier), gt("expiresAt", new Date()))));
+        return (int) ((numberOfNamespaces + liveNodes - 1) / liveNodes);
+    }
+
+    private boolean freeLeaseExists(List<String> namespaces) {
+        return leases().countDocuments(and(
+                in("_id", namespaces.stream().map(this::leaseId).toArray()),
+                or(eq("owner", null), lt("expiresAt", new Date()))
+        )) > 0;
+    }
+
+    private void createLease(String name) {
+        leases().updateOne(eq("_id", leaseId(name)), combine(
+                setOnInsert("identifier", identifier),
+                setOnInsert("name", name),
+                setOnInsert("owner", null),
+                setOnInsert("expiresAt", new Date(0)),
+                setOnInsert("epoch", 0L)
+        ), new UpdateOptions().upsert(true));
+    }
+
+    private boolean acquire(String name) {
+        return acquireLease(name) != null;
+    }
+
+    /**
+     * Acquire the lease of a namespace under a new epoch, then fence the previous owner out of PostgreSQL. Fencing
+     * waits for the transactions of the previous owner still running.
+     */
+    private boolean acquireNamespace(String namespace) {
+        long acquisition = System.currentTimeMillis();
+        Document lease = acquireLease(namespace);
+        if (lease == null) {
+            return false;
+        }
+        long epoch = lease.getLong("epoch");
+        jdbcTemplate.update(
+                format("INSERT INTO %1$s (identifier, name, epoch) VALUES (?, ?, ?) " +
+                        "ON CONFLICT (identifier, name) DO UPDATE SET epoch = EXCLUDED.epoch WHERE %1$s.epoch < EXCLUDED.epoch", fencingTable),
+                identifier, namespace, epoch
+        );
+        epochs.put(namespace, epoch);
+        renewals.put(namespace, acquisition);
+        return true;
+    }
+
+    private Document acquireLease(String name) {
+        createLease(name);
+        try {
+            return leases().findOneAndUpdate(
+                    and(eq("_id", leaseId(name)), or(eq("owner", null), eq("owner", node), lt("expiresAt", new Date()))),
+                    combine(set("owner", node), set("expiresAt", expiration()), inc("epoch", 1L)),
+                    new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+            );
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private boolean renew(String name) {
+        UpdateResult result = leases().updateOne(
+                and(eq("_id", leaseId(name)), eq("owner", node)),
+                set("expiresAt", expiration())
+        );
+        return result.getMatchedCount() > 0;
+    }
+
+    private void release(String name) {
+        positions.remove(name);
+        forget(name);
+        ownedLocks.remove(name);
+        leases().updateOne(
+                and(eq("_id", leaseId(name)), eq("owner", node)),
+                combine(set("owner", null), set("expiresAt", new Date(0)))
+        );
+    }
+
+    /**
+     * Stop applying anything for this namespace.
+     */
+    private void forget(String namespace) {
+        ownedNamespaces.remove(namespace);
+        epochs.remove(namespace);
+        renewals.remove(namespace);
+    }
+
+    private Date expiration() {
+        return new Date(System.currentTimeMillis() + leaseDuration);
+    }
+
+    private String leaseId(String name) {
+        return identifier + "/" + name;
+    }
+
+    private String memberId() {
+        return identifier + "/" + node;
+    }
+
+    private MongoCollection<Document> leases() {
+        return database.getCollection(LEASES);
+    }
+
+    private MongoCollection<Document> nodes() {
+        return database.getCollection(NODES);
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "streamer";
+        }
+    }
+}
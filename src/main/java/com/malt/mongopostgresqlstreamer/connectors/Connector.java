@@ -2,7 +2,9 @@ package com.malt.mongopostgresqlstreamer.connectors;
 
 import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
 import com.malt.mongopostgresqlstreamer.model.FlattenMongoDocument;
+import com.malt.mongopostgresqlstreamer.model.PartialUpdate;
 
+import java.util.List;
 import java.util.stream.Stream;
 
 public interface Connector {
@@ -18,11 +20,39 @@ public interface Connector {
             DatabaseMapping mapping
     );
 
+    /**
+     * Put the tables loaded with the shadow mappings in place of the live ones, which are kept with the retired
+     * mappings until they are dropped.
+     */
+    void swapTables(String mappingName, DatabaseMapping shadow, DatabaseMapping live, DatabaseMapping retired);
+
+    void dropTables(String mappingName, DatabaseMapping mapping);
+
     void upsert(String mappingName, FlattenMongoDocument document, DatabaseMapping mappings);
 
     void update(String mappingName, FlattenMongoDocument document, DatabaseMapping mappings);
 
+    /**
+     * Apply only the changed fields of a document.
+     * @return false when the change could not be applied this way and the whole document must be provided instead
+     */
+    boolean update(String mappingName, PartialUpdate update, DatabaseMapping mappings);
+
     void remove(String mappingName, FlattenMongoDocument document, DatabaseMapping mappings);
 
+    void removeByPrimaryKey(String mappingName, Object primaryKey, DatabaseMapping mappings);
+
+    /**
+     * A page of the primary keys of a table, in ascending order.
+     * @param after last key of the previous page, null for the first one
+     */
+    List<Object> primaryKeys(String mappingName, Object after, int limit, DatabaseMapping mappings);
+
     void bulkInsert(String mappingName, long totalNumberOfDocuments, Stream<FlattenMongoDocument> documents, DatabaseMapping mappings);
+
+    /**
+     * Same as {@link #bulkInsert}, for one chunk of a collection imported in several calls: the start and the end of
+     * the collection are left to the caller to report.
+     */
+    void bulkInsertChunk(String mappingName, Stream<FlattenMongoDocument> documents, DatabaseMapping mappings);
 }
@@ -4,6 +4,7 @@ import com.malt.mongopostgresqlstreamer.connectors.Connector;
 import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
 import com.malt.mongopostgresqlstreamer.model.FieldMapping;
 import com.malt.mongopostgresqlstreamer.model.FlattenMongoDocument;
+import com.malt.mongopostgresqlstreamer.model.PartialUpdate;
 import com.malt.mongopostgresqlstreamer.model.TableMapping;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.types.ObjectId;
@@ -54,12 +55,13 @@ public class PostgreSqlConnector implements Connector {
 
         TableMapping tableMapping = getTableMappingOrFail(mappingName, mapping);
 
+        // Every step can run again when an interrupted import is resumed
         sqlExecutor.setTableAsLogged(tableMapping.getDestinationName());
-        sqlExecutor.addPrimaryKey(tableMapping.getDestinationName(), tableMapping.getPrimaryKey());
-
-        for (String index : tableMapping.getIndices()) {
-            sqlExecutor.createIndex(index);
+        if (!sqlExecutor.hasPrimaryKey(tableMapping.getDestinationName())) {
+            sqlExecutor.addPrimaryKey(tableMapping.getDestinationName(), tableMapping.getPrimaryKey());
         }
+        sqlExecutor.createIndexes(tableMapping.getIndices());
+        sqlExecutor.analyze(tableMapping.getDestinationName());
 
         List<String> relatedTables = getRelatedTables(tableMapping);
         for (String relatedTable : relatedTables) {
@@ -67,6 +69,39 @@ public class PostgreSqlConnector implements Connector {
         }
     }
 
+    @Override
+    public void swapTables(String mappingName, DatabaseMapping shadow, DatabaseMapping live, DatabaseMapping retired) {
+        String shadowTable = getTableMappingOrFail(mappingName, shadow).getDestinationName();
+        TableMapping liveMapping = getTableMappingOrFail(mappingName, live);
+        String liveTable = liveMapping.getDestinationName();
+        String retiredTable = getTableMappingOrFail(mappingName, retired).getDestinationName();
+
+        if (!sqlExecutor.tableExists(shadowTable)) {
+            // Already swapped by an import interrupted right after
+            log.info("{} was already replaced", liveTable);
+            return;
+        }
+        log.info("Replacing {} by {}", liveTable, shadowTable);
+        // A retired table left by a previous swap would prevent the live one from moving
+        sqlExecutor.dropTable(retiredTable);
+        String liveSchema = sqlExecutor.schemaOf(liveTable);
+        sqlExecutor.moveTable(liveTable, sqlExecutor.schemaOf(retiredTable));
+        sqlExecutor.moveTable(shadowTable, liveSchema);
+
+        for (String relatedTable : getRelatedTables(liveMapping)) {
+            swapTables(relatedTable, shadow, live, retired);
+        }
+    }
+
+    @Override
+    public void dropTables(String mappingName, DatabaseMapping mapping) {
+        TableMapping tableMapping = getTableMappingOrFail(mappingName, mapping);
+        sqlExecutor.dropTable(tableMapping.getDestinationName());
+        for (String relatedTable : getRelatedTables(tableMapping)) {
+            dropTables(relatedTable, mapping);
+        }
+    }
+
     @Override
     public void upsert(String mappingName, FlattenMongoDocument document, DatabaseMapping mappings) {
         TableMapping tableMapping = getTableMappingOrFail(mappingName, mappings);
@@ -94,6 +129,32 @@ public class PostgreSqlConnector implements Connector {
         upsert(mappingName, document, mappings);
     }
 
+    @Override
+    public boolean update(String mappingName, PartialUpdate update, DatabaseMapping mappings) {
+        TableMapping tableMapping = getTableMappingOrFail(mappingName, mappings);
+        Optional<FieldMapping> optPrimaryKeyMapping = tableMapping.getByDestinationName(tableMapping.getPrimaryKey());
+        if (!optPrimaryKeyMapping.isPresent() || !update.getKey().get(optPrimaryKeyMapping.get().getSourceName()).isPresent()) {
+            // The row can't be found from the document key alone
+            return false;
+        }
+
+        Map<String, Object> values = update.getValues();
+        List<Field> changedFields = tableMapping.getFieldMappings().stream()
+                .filter(fieldMapping -> !fieldMapping.isAnArray())
+                .filter(fieldMapping -> values.containsKey(fieldMapping.getSourceName()))
+                .map(fieldMapping -> toField(fieldMapping, values))
+                .collect(toList());
+        if (changedFields.isEmpty()) {
+            return true;
+        }
+
+        Field primaryKey = toField(optPrimaryKeyMapping.get(), update.getKey().getValues());
+        int updatedRows = sqlExecutor.update(
+                tableMapping.getDestinationName(), primaryKey.getName(), primaryKey.getValue(), changedFields
+        );
+        return updatedRows > 0;
+    }
+
     private void removeByForeignKey(String MappingName, String fieldName, Object value, DatabaseMapping mappings) {
         TableMapping tableMapping = getTableMappingOrFail(MappingName, mappings);
         sqlExecutor.remove(
@@ -110,6 +171,18 @@ public class PostgreSqlConnector implements Connector {
         sqlExecutor.remove(tableMapping.getDestinationName(), tableMapping.getPrimaryKey(), primaryKeyValue);
     }
 
+    @Override
+    public void removeByPrimaryKey(String mappingName, Object primaryKey, DatabaseMapping mappings) {
+        TableMapping tableMapping = getTableMappingOrFail(mappingName, mappings);
+        sqlExecutor.remove(tableMapping.getDestinationName(), tableMapping.getPrimaryKey(), primaryKey);
+    }
+
+    @Override
+    public List<Object> primaryKeys(String mappingName, Object after, int limit, DatabaseMapping mappings) {
+        TableMapping tableMapping = getTableMappingOrFail(mappingName, mappings);
+        return sqlExecutor.primaryKeys(tableMapping.getDestinationName(), tableMapping.getPrimaryKey(), after, limit);
+    }
+
     @Override
     public void bulkInsert(
             String mappingName,
@@ -117,7 +190,23 @@ public class PostgreSqlConnector implements Connector {
             Stream<FlattenMongoDocument> documents,
             DatabaseMapping mappings) {
 
-        bulkInsert(mappingName, totalNumberOfDocuments, documents, mappings, false);
+        // Several collections may be imported at once, each one with its own connection
+        sqlExecutor.openCopySession();
+        try {
+            bulkInsert(mappingName, totalNumberOfDocuments, documents, mappings, false);
+        } finally {
+            sqlExecutor.closeCopySession();
+        }
+    }
+
+    @Override
+    public void bulkInsertChunk(String mappingName, Stream<FlattenMongoDocument> documents, DatabaseMapping mappings) {
+        sqlExecutor.openCopySession();
+        try {
+            bulkInsert(mappingName, 0, documents, mappings, true);
+        } finally {
+            sqlExecutor.closeCopySession();
+        }
     }
 
     private int bulkInsert(
@@ -125,14 +214,14 @@ public class PostgreSqlConnector implements Connector {
             long totalNumberOfDocuments,
             Stream<FlattenMongoDocument> documents,
             DatabaseMapping mappings,
-            boolean relatedCollection) {
+            boolean quiet) {
 
         long startTime = System.currentTimeMillis();
 
         AtomicInteger counter = new AtomicInteger();
         TableMapping tableMapping = getTableMappingOrFail(mappingName, mappings);
 
-        if (!relatedCollection) {
+        if (!quiet) {
             log.info("Starting bulk insert of collection {} ({} documents)...", tableMapping.getSourceCollection(), totalNumberOfDocuments);
         } else {
             log.trace("Starting bulk insert of collection {} ({} documents)...", tableMapping.getSourceCollection(), totalNumberOfDocuments);
@@ -144,7 +233,7 @@ public class PostgreSqlConnector implements Connector {
                     int nbInsertions = importDocument(document, mappings, tableMapping);
 
                     int tmpCounter = counter.addAndGet(nbInsertions);
-                    if (tmpCounter % 1000 == 0) {
+                    if (!quiet && tmpCounter % 1000 == 0) {
                         long endTime = System.currentTimeMillis();
                         double processTimeInSeconds = (endTime - startTime)/1000D;
                         log.info("{} documents imported to {} - speed : {}/s", tmpCounter, destinationName, tmpCounter/processTimeInSeconds);
@@ -153,7 +242,7 @@ public class PostgreSqlConnector implements Connector {
 
         sqlExecutor.finalizeBatchInsert(destinationName);
 
-        if (!relatedCollection) {
+        if (!quiet) {
             log.info("{} and its related collections was successfully imported ({} documents) !", tableMapping.getSourceCollection(), counter.get());
         } else {
             log.trace("Bulk insert of collection {} done : {} documents inserted", tableMapping.getSourceCollection(), counter.get());
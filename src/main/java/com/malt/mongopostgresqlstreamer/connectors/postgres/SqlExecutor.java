@@ -4,12 +4,20 @@ import com.malt.mongopostgresqlstreamer.connectors.postgres.batch.CopyOperations
 import com.malt.mongopostgresqlstreamer.model.FieldMapping;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.inject.Inject;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
@@ -18,13 +26,23 @@ import static java.util.stream.Collectors.toList;
 @Service
 @Slf4j
 public class SqlExecutor {
+    private static final String DUPLICATE_TABLE = "42P07";
+
     private final JdbcTemplate jdbcTemplate;
     private final CopyOperationsManager copyOperationsManager;
+    private final int indexWorkers;
+    private final String maintenanceWorkMem;
 
     @Inject
-    public SqlExecutor(JdbcTemplate jdbcTemplate, CopyOperationsManager copyOperationsManager) {
+    public SqlExecutor(
+            JdbcTemplate jdbcTemplate,
+            CopyOperationsManager copyOperationsManager,
+            @Value("${mongo.connector.import.index.workers:2}") int indexWorkers,
+            @Value("${mongo.connector.import.maintenance_work_mem:}") String maintenanceWorkMem) {
         this.jdbcTemplate = jdbcTemplate;
         this.copyOperationsManager = copyOperationsManager;
+        this.indexWorkers = indexWorkers;
+        this.maintenanceWorkMem = maintenanceWorkMem;
     }
 
     void upsert(String table, String primaryKey, List<Field> fields) {
@@ -49,6 +67,25 @@ public class SqlExecutor {
         }
     }
 
+    int update(String table, String primaryKey, Object primaryKeyValue, List<Field> fields) {
+        String query = format(
+                "UPDATE %s SET %s WHERE %s = ?",
+                table, generateUpdateString(fields), primaryKey
+        );
+
+        List<Object> values = getValues(fields);
+        values.add(primaryKeyValue);
+        Object[] valuesArray = values.toArray();
+
+        log.debug("{} {}", query, valuesArray);
+        try {
+            return jdbcTemplate.update(query, valuesArray);
+        } catch (Exception e) {
+            log.error("Unable to update record with values : {}", getValues(fields), e);
+            throw e;
+        }
+    }
+
     void batchInsert(String table, List<FieldMapping> mappings, List<Field> fields) {
         log.trace("Bulking insert of {} ({})", table, fields);
         copyOperationsManager.addInsertOperation(table, mappings, fields);
@@ -58,6 +95,14 @@ public class SqlExecutor {
         copyOperationsManager.finalizeCopyOperations(destTable);
     }
 
+    void openCopySession() {
+        copyOperationsManager.openSession();
+    }
+
+    void closeCopySession() {
+        copyOperationsManager.closeSession();
+    }
+
     void dropTable(String table) {
         log.debug("Dropping table '{}'...", table);
         sqlExecute("DROP TABLE IF EXISTS %s", table);
@@ -68,20 +113,109 @@ public class SqlExecutor {
         sqlExecute("ALTER TABLE %s SET LOGGED", table);
     }
 
+    boolean tableExists(String table) {
+        Boolean exists = jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, table);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    boolean hasPrimaryKey(String table) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM pg_index WHERE indrelid = ?::regclass AND indisprimary",
+                Integer.class,
+                table
+        );
+        return count != null && count > 0;
+    }
+
     void addPrimaryKey(String table, String primaryKeyName) {
         log.debug("Adding primary key '{}' on table '{}' ...", primaryKeyName, table);
         sqlExecute("ALTER TABLE %s ADD PRIMARY KEY(%s)", table, primaryKeyName);
     }
 
     void createTable(String table, List<FieldMapping> fieldMappings) {
+        createSchemaOf(table);
         String formattedFields = fieldAndTypes(fieldMappings);
         log.debug("Creating table '{}' with fields {}", table, formattedFields);
         sqlExecute("CREATE UNLOGGED TABLE %s (%s)", table, formattedFields);
     }
 
-    void createIndex(String index) {
+    /**
+     * Build the indexes of a table at the same time, each one on its own connection, outside of any
+     * transaction of the caller. An index that already exists is left as is.
+     */
+    void createIndexes(List<String> indexes) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(indexWorkers, indexes.size())));
+        try {
+            List<Future<?>> futures = indexes.stream()
+                    .map(index -> executor.submit(() -> createIndexOnOwnConnection(index)))
+                    .collect(toList());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building indexes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to build indexes", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void createIndexOnOwnConnection(String index) {
         log.debug("Creating index '{}'", index);
-        sqlExecute("CREATE " + index);
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            try (Statement statement = connection.createStatement()) {
+                if (!maintenanceWorkMem.isEmpty()) {
+                    statement.execute(format("SET maintenance_work_mem = '%s'", maintenanceWorkMem));
+                }
+                try {
+                    statement.execute("CREATE " + index);
+                } catch (SQLException e) {
+                    if (!DUPLICATE_TABLE.equals(e.getSQLState())) {
+                        throw e;
+                    }
+                    log.info("Index '{}' already exists", index);
+                } finally {
+                    // The connection goes back to the pool
+                    if (!maintenanceWorkMem.isEmpty()) {
+                        statement.execute("RESET maintenance_work_mem");
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Move a table, along with its indexes, to another schema. Nothing happens when the table doesn't exist.
+     */
+    void moveTable(String table, String schema) {
+        log.debug("Moving table '{}' to schema '{}' ...", table, schema);
+        sqlExecute("CREATE SCHEMA IF NOT EXISTS %s", schema);
+        sqlExecute("ALTER TABLE IF EXISTS %s SET SCHEMA %s", table, schema);
+    }
+
+    /**
+     * Schema of a table, the current one when its name isn't qualified.
+     */
+    String schemaOf(String table) {
+        int separator = table.lastIndexOf('.');
+        if (separator >= 0) {
+            return table.substring(0, separator);
+        }
+        return jdbcTemplate.queryForObject("SELECT current_schema()", String.class);
+    }
+
+    void analyze(String table) {
+        log.debug("Analyzing table '{}' ...", table);
+        sqlExecute("ANALYZE %s", table);
     }
 
     void remove(String table, String primaryKey, Object primaryKeyValue) {
@@ -98,6 +232,25 @@ public class SqlExecutor {
         }
     }
 
+    List<Object> primaryKeys(String table, String primaryKey, Object after, int limit) {
+        if (after == null) {
+            return jdbcTemplate.queryForList(
+                    format("SELECT %2$s FROM %1$s ORDER BY %2$s LIMIT ?", table, primaryKey),
+                    Object.class, limit
+            );
+        }
+        return jdbcTemplate.queryForList(
+                format("SELECT %2$s FROM %1$s WHERE %2$s > ? ORDER BY %2$s LIMIT ?", table, primaryKey),
+                Object.class, after, limit
+        );
+    }
+
+    private void createSchemaOf(String table) {
+        if (table.contains(".")) {
+            sqlExecute("CREATE SCHEMA IF NOT EXISTS %s", schemaOf(table));
+        }
+    }
+
     private void sqlExecute(String query, Object... parameters) {
         String sql = format(query, parameters);
 
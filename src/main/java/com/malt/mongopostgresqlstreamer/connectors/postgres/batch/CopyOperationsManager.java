@@ -4,42 +4,93 @@ import com.malt.mongopostgresqlstreamer.connectors.postgres.Field;
 import com.malt.mongopostgresqlstreamer.model.FieldMapping;
 import lombok.extern.slf4j.Slf4j;
 import org.postgresql.copy.CopyManager;
+import org.postgresql.jdbc.PgConnection;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.stereotype.Service;
 
 import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * COPY operations are buffered per thread: each thread importing collections runs them on its own connection,
+ * borrowed from the pool by {@link #openSession()} until {@link #closeSession()}, or on the connection of its
+ * transaction if any.
+ */
 @Service
 @Slf4j
 public class CopyOperationsManager {
-    private final CopyManager copyManager;
-    private final Map<String, SingleTableCopyOperations> copyOperationsPerTable = new HashMap<>();
+    private final DataSource dataSource;
+    private final ThreadLocal<CopySession> sessions = new ThreadLocal<>();
 
     @Inject
-    public CopyOperationsManager(CopyManager copyManager) {
-        this.copyManager = copyManager;
+    public CopyOperationsManager(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void openSession() {
+        if (sessions.get() != null) {
+            return;
+        }
+        try {
+            Connection connection = DataSourceUtils.getConnection(dataSource);
+            sessions.set(new CopySession(connection, new CopyManager(connection.unwrap(PgConnection.class))));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to get a connection for the COPY operations", e);
+        }
+    }
+
+    public void closeSession() {
+        CopySession session = sessions.get();
+        if (session == null) {
+            return;
+        }
+        sessions.remove();
+        DataSourceUtils.releaseConnection(session.connection, dataSource);
     }
 
     public void addInsertOperation(String table, List<FieldMapping> fieldMappings, List<Field> fields) {
-        if (!copyOperationsPerTable.containsKey(table)) {
-            copyOperationsPerTable.put(
+        CopySession session = currentSession();
+        if (!session.copyOperationsPerTable.containsKey(table)) {
+            session.copyOperationsPerTable.put(
                     table,
                     new SingleTableCopyOperations(
                             table, fieldMappings,
-                            copyManager
+                            session.copyManager
                     )
             );
         }
 
-        copyOperationsPerTable.get(table).addOperation(fields);
+        session.copyOperationsPerTable.get(table).addOperation(fields);
     }
 
     public void finalizeCopyOperations(String destTable) {
-        SingleTableCopyOperations operations = copyOperationsPerTable.get(destTable);
+        SingleTableCopyOperations operations = currentSession().copyOperationsPerTable.get(destTable);
         if (operations != null) {
             operations.finalizeOperations();
         }
     }
+
+    private CopySession currentSession() {
+        CopySession session = sessions.get();
+        if (session == null) {
+            throw new IllegalStateException("No COPY session opened by " + Thread.currentThread().getName());
+        }
+        return session;
+    }
+
+    private static class CopySession {
+        private final Connection connection;
+        private final CopyManager copyManager;
+        private final Map<String, SingleTableCopyOperations> copyOperationsPerTable = new HashMap<>();
+
+        private CopySession(Connection connection, CopyManager copyManager) {
+            this.connection = connection;
+            this.copyManager = copyManager;
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import lombok.Data;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+import java.util.Collections;
+import java.util.Map;
+
+@Data
+public class Checkpoint {
+    private final BsonTimestamp timestamp;
+    /**
+     * Change stream position, null when streaming from the oplog.
+     */
+    private final BsonDocument resumeToken;
+    /**
+     * Position of each shard when the shards are read separately, the timestamp being the oldest of them.
+     */
+    private final Map<String, BsonTimestamp> shardTimestamps;
+
+    public Checkpoint(BsonTimestamp timestamp, BsonDocument resumeToken) {
+        this(timestamp, resumeToken, Collections.emptyMap());
+    }
+
+    public Checkpoint(BsonTimestamp timestamp, BsonDocument resumeToken, Map<String, BsonTimestamp> shardTimestamps) {
+        this.timestamp = timestamp;
+        this.resumeToken = resumeToken;
+        this.shardTimestamps = shardTimestamps;
+    }
+}
@@ -26,4 +26,16 @@ public class DatabaseMapping {
                 .filter(tableMapping -> tableMapping.getSourceCollection().equals(sourceName))
                 .collect(toList());
     }
+
+    /**
+     * Same mappings, with their tables in another PostgreSQL schema.
+     */
+    public DatabaseMapping inSchema(String schema) {
+        DatabaseMapping copy = new DatabaseMapping();
+        copy.setName(name);
+        copy.setTableMappings(tableMappings.stream()
+                .map(tableMapping -> tableMapping.inSchema(schema))
+                .collect(toList()));
+        return copy;
+    }
 }
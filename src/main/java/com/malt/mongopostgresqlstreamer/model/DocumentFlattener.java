@@ -0,0 +1,213 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import com.github.wnameless.json.flattener.FlattenMode;
+import com.github.wnameless.json.flattener.JsonFlattener;
+import com.mongodb.MongoClient;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Flattens a document by walking it, with the values the extended JSON flattening gives: ObjectIds as their hex
+ * string, 32 bits integers and doubles as {@link BigDecimal}, 64 bits integers as {@link Long}, decimals as
+ * {@link BigDecimal}, and dates as {@link Date}.
+ * Arrays are kept, their elements flattened as in extended JSON. Shapes this walk doesn't reproduce exactly (other
+ * BSON types, empty sub-documents, field names the JSON flattening escapes) are left to the JSON flattening.
+ * Raw documents are read the same way from their bytes, without decoding the fields that are skipped.
+ */
+final class DocumentFlattener {
+
+    private static final String ARRAY_FIELD = "array";
+    @SuppressWarnings("unchecked")
+    private static final Codec<List> ARRAY_CODEC = MongoClient.getDefaultCodecRegistry().get(List.class);
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private DocumentFlattener() {
+    }
+
+    /**
+     * @return the flattened values, empty when the document has to go through the JSON flattening
+     */
+    static Optional<Map<String, Object>> flatten(Map<String, Object> document) {
+        return flatten(document, FieldPaths.ALL);
+    }
+
+    /**
+     * Fields outside of the given paths are skipped, whatever their content.
+     */
+    static Optional<Map<String, Object>> flatten(Map<String, Object> document, FieldPaths paths) {
+        Map<String, Object> values = new HashMap<>();
+        return flatten(null, document, paths, values) ? Optional.of(values) : Optional.empty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean flatten(String prefix, Map<String, Object> document, FieldPaths paths, Map<String, Object> values) {
+        if (document.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<String, Object> field : document.entrySet()) {
+            String name = field.getKey();
+            FieldPaths childPaths = paths.child(name);
+            if (childPaths == null) {
+                continue;
+            }
+            if (!isPlainName(name)) {
+                return false;
+            }
+            String key = prefix == null ? name : prefix + "." + name;
+            Object value = field.getValue();
+            if (value instanceof Map) {
+                if (!flatten(key, (Map<String, Object>) value, childPaths, values)) {
+                    return false;
+                }
+            } else if (childPaths.isWhole() && !flattenValue(key, value, values)) {
+                return false;
+            }
+            // Otherwise a mapped path goes below a value that has no fields
+        }
+        return true;
+    }
+
+    static Optional<Map<String, Object>> flatten(RawBsonDocument document, FieldPaths paths) {
+        Map<String, Object> values = new HashMap<>();
+        try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+            return flatten(null, reader, paths, values) ? Optional.of(values) : Optional.empty();
+        }
+    }
+
+    private static boolean flatten(String prefix, BsonReader reader, FieldPaths paths, Map<String, Object> values) {
+        boolean empty = true;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            empty = false;
+            String name = reader.readName();
+            FieldPaths childPaths = paths.child(name);
+            if (childPaths == null) {
+                reader.skipValue();
+                continue;
+            }
+            if (!isPlainName(name)) {
+                return false;
+            }
+            String key = prefix == null ? name : prefix + "." + name;
+            if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                if (!flatten(key, reader, childPaths, values)) {
+                    return false;
+                }
+            } else if (!childPaths.isWhole()) {
+                reader.skipValue();
+            } else if (!readValue(key, reader, values)) {
+                return false;
+            }
+        }
+        reader.readEndDocument();
+        return !empty;
+    }
+
+    private static boolean readValue(String key, BsonReader reader, Map<String, Object> values) {
+        switch (reader.getCurrentBsonType()) {
+            case NULL:
+                reader.readNull();
+                values.put(key, null);
+                return true;
+            case STRING:
+                values.put(key, reader.readString());
+                return true;
+            case BOOLEAN:
+                values.put(key, reader.readBoolean());
+                return true;
+            case INT64:
+                values.put(key, reader.readInt64());
+                return true;
+            case OBJECT_ID:
+                values.put(key, reader.readObjectId().toHexString());
+                return true;
+            case INT32:
+                values.put(key, new BigDecimal(Integer.toString(reader.readInt32())));
+                return true;
+            case DATE_TIME:
+                values.put(key, new Date(reader.readDateTime()));
+                return true;
+            case DOUBLE:
+                return flattenValue(key, reader.readDouble(), values);
+            case DECIMAL128:
+                return flattenValue(key, reader.readDecimal128(), values);
+            case ARRAY:
+                values.put(key, flattenArray(ARRAY_CODEC.decode(reader, DECODER_CONTEXT)));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean flattenValue(String key, Object value, Map<String, Object> values) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Long) {
+            values.put(key, value);
+        } else if (value instanceof ObjectId) {
+            values.put(key, ((ObjectId) value).toHexString());
+        } else if (value instanceof Integer) {
+            values.put(key, new BigDecimal(value.toString()));
+        } else if (value instanceof Double) {
+            Double number = (Double) value;
+            if (number.isNaN() || number.isInfinite()) {
+                return false;
+            }
+            values.put(key, new BigDecimal(number.toString()));
+        } else if (value instanceof Date) {
+            values.put(key, new Date(((Date) value).getTime()));
+        } else if (value instanceof Decimal128) {
+            Decimal128 decimal = (Decimal128) value;
+            if (decimal.isNaN() || decimal.isInfinite()) {
+                return false;
+            }
+            values.put(key, new BigDecimal(decimal.toString()));
+        } else if (value instanceof BigDecimal) {
+            // Stored as a Decimal128
+            values.put(key, new BigDecimal(new Decimal128((BigDecimal) value).toString()));
+        } else if (value instanceof List) {
+            values.put(key, flattenArray((List<?>) value));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Array elements keep the shape of the extended JSON flattening, which the related tables rely on.
+     */
+    private static Object flattenArray(List<?> array) {
+        return new JsonFlattener(new Document(ARRAY_FIELD, array).toJson())
+                .withFlattenMode(FlattenMode.KEEP_ARRAYS)
+                .flattenAsMap()
+                .get(ARRAY_FIELD);
+    }
+
+    /**
+     * The JSON flattening escapes names with separators or brackets, and {@code $} names are extended JSON types.
+     */
+    private static boolean isPlainName(String name) {
+        if (name.isEmpty() || name.charAt(0) == '$') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.' || c == '[' || c == ']' || c == '"' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trie of the source paths read by table mappings, so that a document is flattened only along these paths.
+ * A path ending on a sub-document or an array keeps all of it.
+ */
+public class FieldPaths {
+
+    /**
+     * Every path of the documents.
+     */
+    public static final FieldPaths ALL = new FieldPaths(Collections.emptyMap(), true);
+
+    private final Map<String, FieldPaths> children;
+    private final boolean whole;
+
+    private FieldPaths(Map<String, FieldPaths> children, boolean whole) {
+        this.children = children;
+        this.whole = whole;
+    }
+
+    public static FieldPaths of(Collection<String> paths) {
+        FieldPaths root = new FieldPaths(new HashMap<>(), false);
+        for (String path : paths) {
+            root.add(path.split("\\."), 0);
+        }
+        return root;
+    }
+
+    private void add(String[] names, int index) {
+        if (index == names.length) {
+            return;
+        }
+        FieldPaths child = children.get(names[index]);
+        if (child != null && child.whole) {
+            return;
+        }
+        if (index == names.length - 1) {
+            children.put(names[index], ALL);
+            return;
+        }
+        if (child == null) {
+            child = new FieldPaths(new HashMap<>(), false);
+            children.put(names[index], child);
+        }
+        child.add(names, index + 1);
+    }
+
+    /**
+     * @return true when nothing below is left out
+     */
+    boolean isWhole() {
+        return whole;
+    }
+
+    /**
+     * @return the paths below a field, null when none of them goes through it
+     */
+    FieldPaths child(String name) {
+        return whole ? this : children.get(name);
+    }
+}
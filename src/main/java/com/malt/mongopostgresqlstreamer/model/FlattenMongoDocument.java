@@ -4,6 +4,8 @@ import com.github.wnameless.json.flattener.FlattenMode;
 import com.github.wnameless.json.flattener.JsonFlattener;
 import lombok.Data;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.bson.types.ObjectId;
 
 import java.math.BigDecimal;
@@ -28,13 +30,30 @@ public class FlattenMongoDocument {
 
 
     public static FlattenMongoDocument fromDocument(Document document) {
+        return fromDocument(document, FieldPaths.ALL);
+    }
+
+    /**
+     * Only the given paths are flattened, unless the document has to go through the JSON flattening.
+     */
+    public static FlattenMongoDocument fromDocument(Document document, FieldPaths paths) {
+        FlattenMongoDocument flattenMongoDocument = new FlattenMongoDocument();
+        flattenMongoDocument.setValues(
+                DocumentFlattener.flatten(document, paths).orElseGet(() -> flattenJson(document))
+        );
+        addCreationDateIfPossible(flattenMongoDocument);
+        fixDateOutOfRange(flattenMongoDocument);
+
+        return flattenMongoDocument;
+    }
+
+    /**
+     * Same as {@link #fromDocument(Document, FieldPaths)}, read from the bytes of the document.
+     */
+    public static FlattenMongoDocument fromRawDocument(RawBsonDocument document, FieldPaths paths) {
         FlattenMongoDocument flattenMongoDocument = new FlattenMongoDocument();
         flattenMongoDocument.setValues(
-                filters(
-                        new JsonFlattener(document.toJson())
-                                .withFlattenMode(FlattenMode.KEEP_ARRAYS)
-                                .flattenAsMap()
-                )
+                DocumentFlattener.flatten(document, paths).orElseGet(() -> flattenJson(document.decode(new DocumentCodec())))
         );
         addCreationDateIfPossible(flattenMongoDocument);
         fixDateOutOfRange(flattenMongoDocument);
@@ -42,6 +61,14 @@ public class FlattenMongoDocument {
         return flattenMongoDocument;
     }
 
+    static Map<String, Object> flattenJson(Document document) {
+        return filters(
+                new JsonFlattener(document.toJson())
+                        .withFlattenMode(FlattenMode.KEEP_ARRAYS)
+                        .flattenAsMap()
+        );
+    }
+
     private static Map<String, Object> filters(Map<String, Object> flattenAsMap) {
         Map<String, Object> filteredMap = new HashMap<>();
         flattenAsMap.forEach((k, v) -> {
@@ -0,0 +1,22 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import lombok.Data;
+
+/**
+ * How the initial import reads the source collection of a table mapping, set by its {@code _import} key.
+ */
+@Data
+public class ImportOptions {
+    /**
+     * Number of {@code _id} ranges of the collection read and copied concurrently.
+     */
+    private int parallelism = 1;
+    /**
+     * Number of documents fetched by each round trip of the import cursors, the driver's default when null.
+     */
+    private Integer batchSize;
+    /**
+     * Read preference of the import queries ({@code secondaryPreferred} for instance), the client's one when null.
+     */
+    private String readPreference;
+}
@@ -0,0 +1,23 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import lombok.Data;
+import org.bson.Document;
+
+/**
+ * Part of a source collection copied by the initial import, and how far its copy went.
+ */
+@Data
+public class ImportRange {
+    private final String mappingName;
+    private final int index;
+    /**
+     * Query selecting the documents of this range, empty when the collection isn't split.
+     */
+    private final Document filter;
+    /**
+     * {@code _id} of the last document copied, null until a first chunk of the range is committed.
+     */
+    private Object lastId;
+    private long rows;
+    private boolean done;
+}
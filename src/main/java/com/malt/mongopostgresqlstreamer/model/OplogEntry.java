@@ -0,0 +1,187 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import lombok.Data;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonReader;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+@Data
+public class OplogEntry {
+    private static final CodecRegistry CODEC_REGISTRY = MongoClient.getDefaultCodecRegistry();
+    private static final BsonTypeClassMap BSON_TYPE_CLASS_MAP = new BsonTypeClassMap();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private final String namespace;
+    private final String database;
+    private final String collection;
+    private final String operation;
+    private final BsonTimestamp timestamp;
+    private final Object documentId;
+    private final Document document;
+
+    /**
+     * Current state of the updated document when it was fetched ahead of the apply, null if it doesn't exist anymore.
+     */
+    private Document fullDocument;
+    private boolean lookedUp;
+
+    /**
+     * Set when this update stands for several operations on the same document, only its final state can be applied.
+     */
+    private boolean coalesced;
+
+    /**
+     * Position of this entry in its change stream, null when read from the oplog.
+     */
+    private BsonDocument resumeToken;
+
+    /**
+     * Shard whose oplog this entry was read from, null unless the shards are read separately.
+     */
+    private String source;
+
+    public static OplogEntry fromOplog(Document document) {
+        String namespace = document.getString("ns");
+        int separator = namespace.indexOf('.');
+        String operation = document.getString("op");
+
+        Map documentWithId = (Map) ("u".equals(operation) ? document.get("o2") : document.get("o"));
+        Object documentId = documentWithId == null ? null : documentWithId.get("_id");
+        if (documentId instanceof BsonValue) {
+            documentId = toJava((BsonValue) documentId);
+        }
+
+        return new OplogEntry(
+                namespace,
+                separator < 0 ? namespace : namespace.substring(0, separator),
+                separator < 0 ? "" : namespace.substring(separator + 1),
+                operation,
+                document.get("ts", BsonTimestamp.class),
+                documentId,
+                document
+        );
+    }
+
+    /**
+     * Same as {@link #fromOplog(Document)}, except that the document of an insert is kept as raw BSON, to be
+     * flattened straight from its bytes.
+     */
+    public static OplogEntry fromRawOplog(RawBsonDocument raw) {
+        Document document = new Document();
+        try (BsonBinaryReader reader = new BsonBinaryReader(raw.getByteBuffer().asNIO())) {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String name = reader.readName();
+                if ("o".equals(name) && "i".equals(document.get("op")) && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                    document.put(name, new RawBsonDocumentCodec().decode(reader, DECODER_CONTEXT));
+                } else {
+                    document.put(name, readValue(reader));
+                }
+            }
+            reader.readEndDocument();
+        }
+        return fromOplog(document);
+    }
+
+    private static Object readValue(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+        return CODEC_REGISTRY.get(BSON_TYPE_CLASS_MAP.get(reader.getCurrentBsonType())).decode(reader, DECODER_CONTEXT);
+    }
+
+    private static Object toJava(BsonValue value) {
+        BsonDocumentReader reader = new BsonDocumentReader(new BsonDocument("value", value));
+        reader.readStartDocument();
+        reader.readBsonType();
+        reader.readName();
+        return readValue(reader);
+    }
+
+    /**
+     * Convert a change event to the oplog format. Updates and replacements come with the document as it was looked up
+     * by the server.
+     */
+    public static OplogEntry fromChangeStream(ChangeStreamDocument<Document> change) {
+        Document documentKey = toDocument(change.getDocumentKey());
+        Document oplog = new Document("ts", change.getClusterTime())
+                .append("ns", change.getNamespace().getFullName());
+
+        switch (change.getOperationType()) {
+            case INSERT:
+                oplog.append("op", "i").append("o", change.getFullDocument());
+                break;
+            case REPLACE:
+                oplog.append("op", "u").append("o", change.getFullDocument()).append("o2", documentKey);
+                break;
+            case UPDATE:
+                UpdateDescription description = change.getUpdateDescription();
+                Document update = new Document("$set", toDocument(description.getUpdatedFields()));
+                if (!description.getRemovedFields().isEmpty()) {
+                    Document unset = new Document();
+                    description.getRemovedFields().forEach(field -> unset.append(field, ""));
+                    update.append("$unset", unset);
+                }
+                oplog.append("op", "u").append("o", update).append("o2", documentKey);
+                break;
+            case DELETE:
+                oplog.append("op", "d").append("o", documentKey);
+                break;
+            default:
+                oplog.append("op", "n").append("o", documentKey);
+                break;
+        }
+
+        OplogEntry entry = fromOplog(oplog);
+        entry.setResumeToken(change.getResumeToken());
+        if ("u".equals(entry.getOperation())) {
+            entry.setFullDocument(change.getFullDocument());
+            entry.setLookedUp(true);
+        }
+        return entry;
+    }
+
+    private static Document toDocument(BsonDocument document) {
+        return new DocumentCodec().decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+    }
+
+    /**
+     * Operations on the same document always get the same partition, so they can be applied in order by the same worker.
+     */
+    public int partition(int numberOfPartitions) {
+        return Math.floorMod(Objects.hash(namespace, documentId), numberOfPartitions);
+    }
+
+    /**
+     * Split items between partitions by the entry they apply, each partition keeping the order of its items.
+     */
+    public static <T> List<List<T>> partition(List<T> items, Function<T, OplogEntry> entryOf, int numberOfPartitions) {
+        List<List<T>> partitions = new ArrayList<>(numberOfPartitions);
+        for (int i = 0; i < numberOfPartitions; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        items.forEach(item -> partitions.get(entryOf.apply(item).partition(numberOfPartitions)).add(item));
+        return partitions;
+    }
+}
@@ -0,0 +1,103 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import lombok.Data;
+import org.bson.Document;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@Data
+public class PartialUpdate {
+    private final FlattenMongoDocument key;
+    private final Map<String, Object> values;
+
+    public static boolean isReplacement(Document update) {
+        return update.keySet().stream().noneMatch(operator -> operator.startsWith("$"));
+    }
+
+    /**
+     * Translates the `o` field of an update oplog entry into the new values of the fields mapped by
+     * `tableMapping`. Values are keyed by source name, unset fields having a null value.
+     * Nothing is returned when the update can't be resolved without the whole document: filtered mappings,
+     * changes touching an array mapping or the inside of a mapped field, unknown update formats.
+     */
+    public static Optional<PartialUpdate> fromOplog(Document update, Document documentKey, TableMapping tableMapping) {
+        if (!tableMapping.getFilters().isEmpty()) {
+            return Optional.empty();
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Object> operation : update.entrySet()) {
+            switch (operation.getKey()) {
+                case "$v":
+                    break;
+                case "$set":
+                    for (Map.Entry<String, Object> change : ((Document) operation.getValue()).entrySet()) {
+                        if (!resolve(change.getKey(), change.getValue(), false, tableMapping, values)) {
+                            return Optional.empty();
+                        }
+                    }
+                    break;
+                case "$unset":
+                    for (String path : ((Document) operation.getValue()).keySet()) {
+                        if (!resolve(path, null, true, tableMapping, values)) {
+                            return Optional.empty();
+                        }
+                    }
+                    break;
+                default:
+                    return Optional.empty();
+            }
+        }
+
+        return Optional.of(new PartialUpdate(FlattenMongoDocument.fromDocument(documentKey), values));
+    }
+
+    private static boolean resolve(String path, Object value, boolean unset, TableMapping tableMapping, Map<String, Object> values) {
+        for (FieldMapping fieldMapping : tableMapping.getFieldMappings()) {
+            String sourceName = fieldMapping.getSourceName();
+            if (isGenerated(sourceName)) {
+                continue;
+            }
+            if (fieldMapping.isAnArray() && (isSameOrParent(path, sourceName) || isSameOrParent(sourceName, path))) {
+                return false;
+            }
+            if (!fieldMapping.isAnArray() && path.startsWith(sourceName + ".")) {
+                return false;
+            }
+        }
+
+        Map<String, Object> flattenedValue = unset ? new HashMap<>() : flatten(path, value);
+        for (FieldMapping fieldMapping : tableMapping.getFieldMappings()) {
+            String sourceName = fieldMapping.getSourceName();
+            if (fieldMapping.isAnArray() || isGenerated(sourceName) || !isSameOrParent(path, sourceName)) {
+                continue;
+            }
+            Object newValue = flattenedValue.get(sourceName);
+            if (newValue instanceof List) {
+                return false;
+            }
+            values.put(sourceName, newValue);
+        }
+        return true;
+    }
+
+    private static Map<String, Object> flatten(String path, Object value) {
+        String[] parts = path.split("\\.");
+        Object nested = value;
+        for (int i = parts.length - 1; i >= 0; i--) {
+            nested = new Document(parts[i], nested);
+        }
+        return FlattenMongoDocument.fromDocument((Document) nested).getValues();
+    }
+
+    private static boolean isSameOrParent(String parent, String path) {
+        return path.equals(parent) || path.startsWith(parent + ".");
+    }
+
+    private static boolean isGenerated(String sourceName) {
+        return sourceName.isEmpty() || sourceName.equals("_creationdate");
+    }
+}
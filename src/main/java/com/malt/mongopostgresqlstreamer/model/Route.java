@@ -0,0 +1,30 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import lombok.Data;
+
+import java.util.function.Predicate;
+
+/**
+ * A table mapping fed by a namespace, with everything needed to dispatch an operation to it.
+ */
+@Data
+public class Route {
+    private final DatabaseMapping databaseMapping;
+    private final TableMapping tableMapping;
+    /**
+     * Filters of the table mapping combined once for all, accepting every document when there is none.
+     */
+    private final Predicate<FlattenMongoDocument> filter;
+
+    public static Route of(DatabaseMapping databaseMapping, TableMapping tableMapping) {
+        Predicate<FlattenMongoDocument> filter = tableMapping.getFilters().stream()
+                .map(FilterMapping::apply)
+                .reduce(Predicate::or)
+                .orElse(x -> true);
+        return new Route(databaseMapping, tableMapping, filter);
+    }
+
+    public String getMappingName() {
+        return tableMapping.getMappingName();
+    }
+}
@@ -0,0 +1,18 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import lombok.Data;
+
+@Data
+public class Shard {
+    private final String name;
+    /**
+     * Connected to the replica set of the shard directly, not through mongos.
+     */
+    private final MongoClient client;
+
+    public MongoDatabase getOplog() {
+        return client.getDatabase("local");
+    }
+}
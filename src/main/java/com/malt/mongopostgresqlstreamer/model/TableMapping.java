@@ -3,8 +3,12 @@ package com.malt.mongopostgresqlstreamer.model;
 import lombok.Data;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Data
@@ -17,6 +21,7 @@ public class TableMapping {
     private List<FieldMapping> fieldMappings = new ArrayList<>();
     private List<String> indices = new ArrayList<>();
     private List<FilterMapping> filters = new ArrayList<>();
+    private ImportOptions importOptions = new ImportOptions();
 
     public Optional<FieldMapping> getByDestinationName(String destinationFieldName) {
         return fieldMappings.stream()
@@ -40,4 +45,52 @@ public class TableMapping {
                 .filter(field -> field.getType().startsWith("_ARRAY"))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Paths of the source documents needed to fill this table, its related tables and evaluate its filters.
+     */
+    public Set<String> getSourcePaths() {
+        Set<String> paths = new LinkedHashSet<>();
+        paths.add("_id");
+        for (FieldMapping fieldMapping : fieldMappings) {
+            String sourceName = fieldMapping.getSourceName();
+            if (!sourceName.isEmpty() && !sourceName.equals("_creationdate")) {
+                paths.add(sourceName);
+            }
+        }
+        for (FilterMapping filter : filters) {
+            paths.add(filter.getField());
+        }
+        return paths;
+    }
+
+    /**
+     * Top level fields of {@link #getSourcePaths()}.
+     */
+    public Set<String> getProjectedPaths() {
+        return getSourcePaths().stream()
+                .map(path -> path.split("\\.")[0])
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Same mapping, with its table and indexes in another PostgreSQL schema.
+     */
+    public TableMapping inSchema(String schema) {
+        String table = destinationName.substring(destinationName.lastIndexOf('.') + 1);
+        Pattern onTable = Pattern.compile("(?i)(\\bON\\s+)" + Pattern.quote(destinationName) + "\\b");
+
+        TableMapping copy = new TableMapping();
+        copy.setMappingName(mappingName);
+        copy.setSourceCollection(sourceCollection);
+        copy.setDestinationName(schema + "." + table);
+        copy.setPrimaryKey(primaryKey);
+        copy.setFieldMappings(fieldMappings);
+        copy.setIndices(indices.stream()
+                .map(index -> onTable.matcher(index).replaceFirst("$1" + Matcher.quoteReplacement(copy.getDestinationName())))
+                .collect(Collectors.toList()));
+        copy.setFilters(filters);
+        copy.setImportOptions(importOptions);
+        return copy;
+    }
 }
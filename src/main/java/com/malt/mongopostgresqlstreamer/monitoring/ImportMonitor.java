@@ -0,0 +1,71 @@
+package com.malt.mongopostgresqlstreamer.monitoring;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Progress of each table mapping during the initial import or a reimport, reported by the health endpoint.
+ */
+@Component
+public class ImportMonitor {
+
+    private final Map<String, TableImport> tables = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public void reset() {
+        tables.clear();
+    }
+
+    public void pending(String mappingName) {
+        tables.put(mappingName, new TableImport());
+    }
+
+    public void copying(String mappingName) {
+        TableImport table = table(mappingName);
+        table.setStart(new Date());
+        table.setStatus(TableImport.Status.COPYING);
+    }
+
+    public void rowsCopied(String mappingName, long rows) {
+        table(mappingName).getRows().addAndGet(rows);
+    }
+
+    public void finalizing(String mappingName) {
+        TableImport table = table(mappingName);
+        table.setCopied(new Date());
+        table.setStatus(TableImport.Status.FINALIZING);
+    }
+
+    public void done(String mappingName) {
+        TableImport table = table(mappingName);
+        table.setEnd(new Date());
+        table.setStatus(TableImport.Status.DONE);
+    }
+
+    public void failed(String mappingName) {
+        TableImport table = table(mappingName);
+        table.setEnd(new Date());
+        table.setStatus(TableImport.Status.FAILED);
+    }
+
+    /**
+     * Whether a table is waiting for its import or being imported.
+     */
+    public boolean isRunning() {
+        return getTables().values().stream()
+                .anyMatch(table -> table.getStatus() != TableImport.Status.DONE && table.getStatus() != TableImport.Status.FAILED);
+    }
+
+    public Map<String, TableImport> getTables() {
+        synchronized (tables) {
+            return new LinkedHashMap<>(tables);
+        }
+    }
+
+    private TableImport table(String mappingName) {
+        return tables.computeIfAbsent(mappingName, name -> new TableImport());
+    }
+}
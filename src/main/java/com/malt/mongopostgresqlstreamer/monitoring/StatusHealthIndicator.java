@@ -7,6 +7,7 @@ import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.stereotype.Component;
 
+import java.util.Map;
 import java.util.Optional;
 
 @Component
@@ -14,6 +15,8 @@ public class StatusHealthIndicator implements HealthIndicator {
 
     @Autowired
     private CheckpointManager checkpointManager;
+    @Autowired
+    private ImportMonitor importMonitor;
 
     @Override
     public Health health() {
@@ -22,9 +25,13 @@ public class StatusHealthIndicator implements HealthIndicator {
         Optional<BsonTimestamp> lastKnown = checkpointManager.getLastKnown();
         lag.computeFromCheckpointAndOplog(lastKnown);
         InitialImport initialImport = checkpointManager.lastImportStatus();
-        return Health.up()
+        Health.Builder health = Health.up()
                 .withDetail("lag", lag)
-                .withDetail("initial", initialImport)
-                .build();
+                .withDetail("initial", initialImport);
+        Map<String, TableImport> tables = importMonitor.getTables();
+        if (!tables.isEmpty()) {
+            health.withDetail("tables", tables);
+        }
+        return health.build();
     }
 }
\ No newline at end of file
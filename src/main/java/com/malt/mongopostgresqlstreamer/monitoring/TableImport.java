@@ -0,0 +1,19 @@
+package com.malt.mongopostgresqlstreamer.monitoring;
+
+import lombok.Data;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Data
+public class TableImport {
+    private volatile Status status = Status.PENDING;
+    private final AtomicLong rows = new AtomicLong();
+    private volatile Date start;
+    private volatile Date copied;
+    private volatile Date end;
+
+    public enum Status {
+        PENDING, COPYING, FINALIZING, DONE, FAILED
+    }
+}
@@ -0,0 +1,159 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.checkpoints.CheckpointStore;
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+class CheckpointManagerTest {
+
+    private final FakeCheckpointStore checkpointStore = new FakeCheckpointStore();
+    private CheckpointManager checkpointManager;
+
+    @AfterEach
+    void tearDown() {
+        checkpointManager.shutdown();
+    }
+
+    @Test
+    void it_should_save_every_checkpoint_right_away_without_threshold() {
+        givenCheckpointManager(1, 0);
+
+        checkpointManager.keep(new BsonTimestamp(1, 0));
+        checkpointManager.keep(new BsonTimestamp(2, 0));
+
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(1, 0), new BsonTimestamp(2, 0));
+    }
+
+    @Test
+    void it_should_save_the_latest_checkpoint_once_enough_operations_are_applied() {
+        givenCheckpointManager(10, 0);
+
+        checkpointManager.keep(new BsonTimestamp(1, 0), null, 4);
+        checkpointManager.keep(new BsonTimestamp(2, 0), null, 4);
+        assertThat(checkpointStore.savedTimestamps()).isEmpty();
+
+        checkpointManager.keep(new BsonTimestamp(3, 0), null, 4);
+
+        await(() -> !checkpointStore.saved.isEmpty());
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(3, 0));
+    }
+
+    @Test
+    void it_should_save_the_latest_checkpoint_when_the_interval_elapses() {
+        givenCheckpointManager(1000, 100);
+
+        checkpointManager.keep(new BsonTimestamp(1, 0), null, 1);
+        checkpointManager.keep(new BsonTimestamp(2, 0), null, 1);
+
+        await(() -> !checkpointStore.saved.isEmpty());
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(2, 0));
+    }
+
+    @Test
+    void it_should_keep_a_checkpoint_whose_save_failed() {
+        givenCheckpointManager(1000, 0);
+        checkpointStore.failures.set(1);
+
+        checkpointManager.keep(new BsonTimestamp(1, 0), null, 1);
+        assertThatThrownBy(() -> checkpointManager.flush()).isInstanceOf(IllegalStateException.class);
+        checkpointManager.flush();
+
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(1, 0));
+    }
+
+    @Test
+    void it_should_not_save_a_failed_checkpoint_over_one_kept_during_the_save() {
+        givenCheckpointManager(1000, 0);
+        checkpointStore.failures.set(1);
+        checkpointStore.beforeSave = () -> checkpointManager.keep(new BsonTimestamp(2, 0), null, 1);
+
+        checkpointManager.keep(new BsonTimestamp(1, 0), null, 1);
+        assertThatThrownBy(() -> checkpointManager.flush()).isInstanceOf(IllegalStateException.class);
+        checkpointStore.beforeSave = () -> { };
+        checkpointManager.flush();
+        checkpointManager.flush();
+
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(2, 0));
+    }
+
+    @Test
+    void it_should_keep_the_oldest_shard_position_as_the_global_checkpoint() {
+        givenCheckpointManager(1, 0);
+        Map<String, BsonTimestamp> startPositions = new HashMap<>();
+        startPositions.put("shard1", new BsonTimestamp(10, 0));
+        startPositions.put("shard2", new BsonTimestamp(5, 0));
+        checkpointManager.startShards(startPositions);
+
+        checkpointManager.keepShards(Collections.singletonMap("shard1", new BsonTimestamp(12, 0)), 1);
+        checkpointManager.keepShards(Collections.singletonMap("shard2", new BsonTimestamp(8, 0)), 1);
+
+        // The idle shard2 holds the global position back until it moves
+        assertThat(checkpointStore.savedTimestamps()).containsExactly(new BsonTimestamp(5, 0), new BsonTimestamp(8, 0));
+        assertThat(checkpointStore.saved.get(1).getShardTimestamps())
+                .containsOnly(entry("shard1", new BsonTimestamp(12, 0)), entry("shard2", new BsonTimestamp(8, 0)));
+        assertThat(checkpointManager.getLastKnown("shard1")).contains(new BsonTimestamp(12, 0));
+        assertThat(checkpointManager.getLastKnown("new-shard")).contains(new BsonTimestamp(8, 0));
+    }
+
+    private void givenCheckpointManager(long checkpointOperations, long checkpointInterval) {
+        checkpointManager = new CheckpointManager();
+        ReflectionTestUtils.setField(checkpointManager, "checkpointStore", checkpointStore);
+        ReflectionTestUtils.setField(checkpointManager, "checkpointOperations", checkpointOperations);
+        ReflectionTestUtils.setField(checkpointManager, "checkpointInterval", checkpointInterval);
+        checkpointManager.init();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("Checkpoint saved in time").isLessThan(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class FakeCheckpointStore implements CheckpointStore {
+        private final List<Checkpoint> saved = new CopyOnWriteArrayList<>();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile Runnable beforeSave = () -> { };
+
+        @Override
+        public Optional<Checkpoint> load() {
+            return saved.isEmpty() ? Optional.empty() : Optional.of(saved.get(saved.size() - 1));
+        }
+
+        @Override
+        public void save(Checkpoint checkpoint) {
+            beforeSave.run();
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("Store unavailable");
+            }
+            saved.add(checkpoint);
+        }
+
+        private List<BsonTimestamp> savedTimestamps() {
+            return saved.stream().map(Checkpoint::getTimestamp).collect(toList());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Objects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FilterPushdownTest {
+
+    private FilterPushdown filterPushdown;
+
+    @BeforeEach
+    void setUp() {
+        ResourceResolverService resourceResolverService = new ResourceResolverService(
+                new DefaultResourceLoader(Thread.currentThread().getContextClassLoader())
+        );
+        String filePath = Objects.requireNonNull(this.getClass().getClassLoader().getResource("mapping.json")).getPath();
+        MappingsManager mappingsManager = new MappingsManager(resourceResolverService, filePath);
+        mappingsManager.read();
+
+        filterPushdown = new FilterPushdown();
+        ReflectionTestUtils.setField(filterPushdown, "enabled", true);
+        ReflectionTestUtils.setField(filterPushdown, "mappingsManager", mappingsManager);
+    }
+
+    @Test
+    void it_should_match_nothing_when_no_namespace_is_watched() {
+        BsonDocument filter = toBsonDocument(filterPushdown.oplogFilter(Collections.emptyList()));
+
+        assertThat(filter).isEqualTo(BsonDocument.parse("{\"op\": {\"$in\": []}}"));
+    }
+
+    @Test
+    void it_should_only_let_accepted_inserts_of_filtered_namespaces_through() {
+        BsonDocument filter = toBsonDocument(filterPushdown.oplogFilter());
+
+        assertThat(filter.toJson())
+                .contains("my_mongo_database.my_mongo_collection")
+                .contains("my_mongo_database.filtered_collection")
+                .contains("\"o.name\"");
+    }
+
+    private static BsonDocument toBsonDocument(Bson filter) {
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,80 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.not;
+import static com.mongodb.client.model.Filters.type;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InitialImporterTest {
+
+    @Test
+    void it_should_import_the_largest_collections_first() {
+        List<String> imported = new ArrayList<>();
+        List<InitialImporter.ImportTask> tasks = Arrays.asList(
+                new InitialImporter.ImportTask(10, () -> imported.add("small")),
+                new InitialImporter.ImportTask(0, () -> imported.add("unknown size")),
+                new InitialImporter.ImportTask(1000, () -> imported.add("large")),
+                new InitialImporter.ImportTask(10, () -> imported.add("small too"))
+        );
+
+        InitialImporter.largestFirst(tasks).forEach(Runnable::run);
+
+        assertThat(imported).containsExactly("large", "small", "small too", "unknown size");
+    }
+
+    @Test
+    void it_should_split_the_ids_at_evenly_spaced_samples() {
+        List<Object> samples = IntStream.range(0, 40).mapToObj(i -> new ObjectId()).collect(toList());
+
+        List<Bson> ranges = InitialImporter.splitRanges(samples, 4);
+
+        assertThat(ranges).extracting(InitialImporterTest::render).containsExactly(
+                render(lt("_id", samples.get(10))),
+                render(and(gte("_id", samples.get(10)), lt("_id", samples.get(20)))),
+                render(and(gte("_id", samples.get(20)), lt("_id", samples.get(30)))),
+                render(gte("_id", samples.get(30))),
+                render(not(type("_id", BsonType.OBJECT_ID)))
+        );
+    }
+
+    @Test
+    void it_should_not_make_empty_ranges_out_of_repeated_samples() {
+        List<Object> samples = Arrays.asList("a", "b");
+
+        List<Bson> ranges = InitialImporter.splitRanges(samples, 4);
+
+        assertThat(ranges).extracting(InitialImporterTest::render).containsExactly(
+                render(lt("_id", "a")),
+                render(and(gte("_id", "a"), lt("_id", "b"))),
+                render(gte("_id", "b")),
+                render(not(type("_id", BsonType.STRING)))
+        );
+    }
+
+    @Test
+    void it_should_not_split_ids_of_mixed_or_unsupported_types() {
+        assertThat(InitialImporter.splitRanges(Arrays.asList(new ObjectId(), "a"), 2)).isEmpty();
+        assertThat(InitialImporter.splitRanges(Arrays.asList(1, 2, 3), 2)).isEmpty();
+        assertThat(InitialImporter.splitRanges(new ArrayList<>(), 2)).isEmpty();
+    }
+
+    private static BsonDocument render(Bson filter) {
+        return filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+    }
+}
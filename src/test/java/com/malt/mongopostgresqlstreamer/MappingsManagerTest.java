@@ -8,6 +8,7 @@ import org.springframework.core.io.DefaultResourceLoader;
 import java.util.List;
 import java.util.Objects;
 
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.groups.Tuple.tuple;
 
@@ -56,6 +57,7 @@ class MappingsManagerTest {
                 );
         assertThat(table1.getFilters()).isEmpty();
         assertThat(table1.getIndices()).isNotEmpty();
+        assertThat(table1.getImportOptions().getParallelism()).isEqualTo(1);
 
         TableMapping table2 = tableMappings.get(1);
         assertThat(table2.getMappingName()).isEqualTo("custom_mapping_name");
@@ -69,6 +71,9 @@ class MappingsManagerTest {
                         tuple("description", "description", "TEXT")
                 );
         assertThat(table2.getFilters()).isEmpty();
+        assertThat(table2.getImportOptions().getParallelism()).isEqualTo(4);
+        assertThat(table2.getImportOptions().getBatchSize()).isEqualTo(500);
+        assertThat(table2.getImportOptions().getReadPreference()).isEqualTo("secondaryPreferred");
 
         TableMapping table3 = tableMappings.get(1);
         assertThat(table3.getMappingName()).isEqualTo("custom_mapping_name");
@@ -156,4 +161,39 @@ class MappingsManagerTest {
                         tuple("", "id", "VARCHAR", null, true, false, "VARCHAR", null)
                 );
     }
+
+    @Test
+    void it_should_move_tables_and_their_indexes_to_another_schema() {
+        String filePath = this.getClass().getClassLoader().getResource("mapping-with-related-table.json").getPath();
+        DatabaseMapping dbMapping = mappingsManager.read(filePath).getDatabaseMappings().get(0);
+
+        DatabaseMapping shadow = dbMapping.inSchema("shadow");
+
+        assertThat(shadow.getTableMappings())
+                .extracting(TableMapping::getMappingName, TableMapping::getDestinationName)
+                .containsExactly(tuple("teams", "shadow.teams"), tuple("team_members", "shadow.team_members"));
+        assertThat(shadow.get("team_members").get().getIndices()).containsExactlyInAnyOrder(
+                "INDEX idx_team_members__creationdate ON shadow.team_members (_creationdate)",
+                "INDEX idx_team_members_team_id ON shadow.team_members (team_id)"
+        );
+        assertThat(dbMapping.get("teams").get().getDestinationName()).isEqualTo("teams");
+    }
+
+    @Test
+    void it_should_route_each_namespace_to_its_table_mappings() {
+        mappingsManager.read();
+
+        assertThat(mappingsManager.mappedNamespaces()).containsExactly(
+                "my_mongo_database.my_mongo_collection",
+                "my_mongo_database.filtered_collection"
+        );
+        assertThat(mappingsManager.routesFor("my_mongo_database.my_mongo_collection"))
+                .extracting(Route::getMappingName)
+                .containsExactly("my_mongo_collection", "custom_mapping_name");
+        assertThat(mappingsManager.routesFor("my_mongo_database.unknown")).isEmpty();
+
+        Route filtered = mappingsManager.routesFor("my_mongo_database.filtered_collection").get(0);
+        assertThat(filtered.getFilter().test(FlattenMongoDocument.fromMap(singletonMap("name", "foo")))).isTrue();
+        assertThat(filtered.getFilter().test(FlattenMongoDocument.fromMap(singletonMap("name", "bar")))).isFalse();
+    }
 }
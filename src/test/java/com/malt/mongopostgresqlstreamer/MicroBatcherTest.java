@@ -0,0 +1,90 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MicroBatcherTest {
+
+    private static final OplogEntry END_OF_STREAM = new OplogEntry(null, null, null, null, null, null, null);
+
+    private final BlockingQueue<OplogEntry> queue = new LinkedBlockingQueue<>();
+
+    @Test
+    void it_should_flush_a_batch_as_soon_as_it_is_full() throws InterruptedException {
+        MicroBatcher batcher = new MicroBatcher(queue, END_OF_STREAM, 1, 2, 60_000);
+        queue.add(givenEntry(1));
+        queue.add(givenEntry(2));
+        queue.add(givenEntry(3));
+
+        long start = System.currentTimeMillis();
+        List<OplogEntry> batch = batcher.next();
+
+        assertThat(batch).extracting(OplogEntry::getDocumentId).containsExactly("1", "2");
+        assertThat(System.currentTimeMillis() - start).isLessThan(10_000);
+    }
+
+    @Test
+    void it_should_flush_an_incomplete_batch_once_its_first_entry_waited_long_enough() throws InterruptedException {
+        MicroBatcher batcher = new MicroBatcher(queue, END_OF_STREAM, 1, 100, 200);
+        queue.add(givenEntry(1));
+        queue.add(givenEntry(2));
+
+        long start = System.currentTimeMillis();
+        List<OplogEntry> batch = batcher.next();
+
+        assertThat(batch).extracting(OplogEntry::getDocumentId).containsExactly("1", "2");
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(200);
+    }
+
+    @Test
+    void it_should_not_start_the_deadline_before_the_first_entry() throws InterruptedException {
+        MicroBatcher batcher = new MicroBatcher(queue, END_OF_STREAM, 1, 2, 100);
+        Thread producer = new Thread(() -> {
+            sleep(300);
+            queue.add(givenEntry(1));
+            sleep(50);
+            queue.add(givenEntry(2));
+        });
+        producer.start();
+
+        List<OplogEntry> batch = batcher.next();
+        producer.join();
+
+        assertThat(batch).extracting(OplogEntry::getDocumentId).containsExactly("1", "2");
+    }
+
+    @Test
+    void it_should_end_with_the_last_reader() throws InterruptedException {
+        MicroBatcher batcher = new MicroBatcher(queue, END_OF_STREAM, 2, 100, 60_000);
+        queue.add(givenEntry(1));
+        queue.add(END_OF_STREAM);
+        queue.add(givenEntry(2));
+        queue.add(END_OF_STREAM);
+
+        assertThat(batcher.next()).extracting(OplogEntry::getDocumentId).containsExactly("1", "2");
+        assertThat(batcher.next()).isEmpty();
+    }
+
+    private static OplogEntry givenEntry(int id) {
+        return OplogEntry.fromOplog(new Document("ts", new BsonTimestamp(id, 0))
+                .append("ns", "my_db.my_collection")
+                .append("op", "i")
+                .append("o", new Document("_id", String.valueOf(id))));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
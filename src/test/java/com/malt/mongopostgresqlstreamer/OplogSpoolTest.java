@@ -0,0 +1,149 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.connectors.Connector;
+import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OplogSpoolTest {
+
+    private final BlockingQueue<RawBsonDocument> oplog = new LinkedBlockingQueue<>();
+    private final List<String> applied = new CopyOnWriteArrayList<>();
+    private OplogSpool oplogSpool;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        MongoDatabase oplogDatabase = mock(MongoDatabase.class);
+        MongoCollection<RawBsonDocument> collection = mock(MongoCollection.class);
+        FindIterable<RawBsonDocument> documents = mock(FindIterable.class);
+        MongoCursor<RawBsonDocument> cursor = mock(MongoCursor.class);
+        when(oplogDatabase.getCollection(CheckpointManager.OPLOG_COLLECTION_NAME, RawBsonDocument.class)).thenReturn(collection);
+        when(collection.find(any(Bson.class))).thenReturn(documents);
+        when(documents.projection(any())).thenReturn(documents);
+        when(documents.cursorType(any())).thenReturn(documents);
+        when(documents.oplogReplay(anyBoolean())).thenReturn(documents);
+        when(documents.noCursorTimeout(anyBoolean())).thenReturn(documents);
+        when(documents.iterator()).thenReturn(cursor);
+        when(cursor.tryNext()).thenAnswer(invocation -> oplog.poll(50, TimeUnit.MILLISECONDS));
+        when(cursor.getServerCursor()).thenReturn(new ServerCursor(1, new ServerAddress()));
+
+        FilterPushdown filterPushdown = mock(FilterPushdown.class);
+        when(filterPushdown.oplogFilter()).thenReturn(new Document());
+        OperationTransformer operationTransformer = mock(OperationTransformer.class);
+        when(operationTransformer.prepare(any(OplogEntry.class), any(Predicate.class), any(UnaryOperator.class))).thenAnswer(invocation -> {
+            OplogEntry entry = invocation.getArgument(0);
+            return Collections.<Consumer<Connector>>singletonList(connector -> applied.add(String.valueOf(entry.getDocumentId())));
+        });
+
+        oplogSpool = new OplogSpool();
+        ReflectionTestUtils.setField(oplogSpool, "enabled", true);
+        ReflectionTestUtils.setField(oplogSpool, "ingestion", "oplog");
+        ReflectionTestUtils.setField(oplogSpool, "identifier", "test");
+        ReflectionTestUtils.setField(oplogSpool, "directory", Files.createTempDirectory("spool").toString());
+        ReflectionTestUtils.setField(oplogSpool, "oplog", oplogDatabase);
+        ReflectionTestUtils.setField(oplogSpool, "filterPushdown", filterPushdown);
+        ReflectionTestUtils.setField(oplogSpool, "operationTransformer", operationTransformer);
+        ReflectionTestUtils.setField(oplogSpool, "connectors", Collections.singletonList(mock(Connector.class)));
+        ReflectionTestUtils.setField(oplogSpool, "transactionManager", mock(PlatformTransactionManager.class));
+        oplogSpool.init();
+    }
+
+    @Test
+    void it_should_replay_the_entries_of_a_namespace_once_its_tables_are_imported() {
+        oplogSpool.start(new BsonTimestamp(0, 0), UnaryOperator.<DatabaseMapping>identity(), false);
+        givenOplogEntry(1, "my_db.users", "user1");
+        givenOplogEntry(2, "my_db.orders", "order1");
+        givenOplogEntry(3, "my_db.users", "user2");
+        await(() -> new BsonTimestamp(3, 0).equals(ReflectionTestUtils.getField(oplogSpool, "lastSpooled")));
+        assertThat(applied).isEmpty();
+
+        oplogSpool.replay("my_db.users");
+
+        assertThat(applied).containsExactly("user1", "user2");
+    }
+
+    @Test
+    void it_should_keep_replaying_an_imported_namespace_until_the_import_finishes() {
+        oplogSpool.start(new BsonTimestamp(0, 0), UnaryOperator.<DatabaseMapping>identity(), false);
+        givenOplogEntry(1, "my_db.users", "user1");
+        await(() -> new BsonTimestamp(1, 0).equals(ReflectionTestUtils.getField(oplogSpool, "lastSpooled")));
+        oplogSpool.replay("my_db.users");
+
+        givenOplogEntry(2, "my_db.users", "user2");
+        givenOplogEntry(3, "my_db.orders", "order1");
+
+        await(() -> applied.contains("user2"));
+        assertThat(applied).containsExactly("user1", "user2");
+    }
+
+    @Test
+    void it_should_apply_every_remaining_entry_when_the_import_finishes() {
+        oplogSpool.start(new BsonTimestamp(0, 0), UnaryOperator.<DatabaseMapping>identity(), false);
+        givenOplogEntry(1, "my_db.users", "user1");
+        givenOplogEntry(2, "my_db.orders", "order1");
+        givenOplogEntry(3, "my_db.orders", "order2");
+        await(() -> new BsonTimestamp(3, 0).equals(ReflectionTestUtils.getField(oplogSpool, "lastSpooled")));
+        oplogSpool.replay("my_db.users");
+
+        BsonTimestamp position = oplogSpool.finish();
+
+        assertThat(position).isEqualTo(new BsonTimestamp(3, 0));
+        assertThat(applied).containsExactly("user1", "order1", "order2");
+    }
+
+    private void givenOplogEntry(int time, String namespace, String id) {
+        Document entry = new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", namespace)
+                .append("op", "i")
+                .append("o", new Document("_id", id));
+        oplog.add(new RawBsonDocument(entry, new DocumentCodec()));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("Oplog spooled in time").isLessThan(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.cluster.LeaseManager;
+import com.malt.mongopostgresqlstreamer.connectors.Connector;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.malt.mongopostgresqlstreamer.model.Shard;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.MongoQueryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OplogStreamerTest {
+
+    private static final String NAMESPACE = "my_db.superheros";
+
+    private final List<Object> appliedIds = new CopyOnWriteArrayList<>();
+    private final List<Bson> oplogQueries = new CopyOnWriteArrayList<>();
+    private final Queue<MongoCursor<Document>> cursors = new LinkedList<>();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CheckpointManager checkpointManager;
+    private ShardDiscovery shardDiscovery;
+    private OplogStreamer oplogStreamer;
+
+    @BeforeEach
+    void setUp() {
+        MongoDatabase oplog = givenOplog(cursors, oplogQueries);
+        checkpointManager = mock(CheckpointManager.class);
+        shardDiscovery = mock(ShardDiscovery.class);
+
+        OperationTransformer operationTransformer = mock(OperationTransformer.class);
+        when(operationTransformer.prepare(any(OplogEntry.class))).thenAnswer(invocation -> {
+            OplogEntry entry = invocation.getArgument(0);
+            return Collections.<Consumer<Connector>>singletonList(connector -> appliedIds.add(entry.getDocumentId()));
+        });
+        FilterPushdown filterPushdown = mock(FilterPushdown.class);
+        when(filterPushdown.oplogFilter(anyCollection())).thenReturn(new Document());
+
+        oplogStreamer = new OplogStreamer();
+        ReflectionTestUtils.setField(oplogStreamer, "ingestion", "oplog");
+        ReflectionTestUtils.setField(oplogStreamer, "batchSize", 1);
+        ReflectionTestUtils.setField(oplogStreamer, "batchMaxWait", 10L);
+        ReflectionTestUtils.setField(oplogStreamer, "numberOfLanes", 1);
+        ReflectionTestUtils.setField(oplogStreamer, "backoffInitial", 1L);
+        ReflectionTestUtils.setField(oplogStreamer, "backoffMax", 4L);
+        ReflectionTestUtils.setField(oplogStreamer, "readBufferSize", 100);
+        ReflectionTestUtils.setField(oplogStreamer, "writeBufferSize", 4);
+        ReflectionTestUtils.setField(oplogStreamer, "numberOfTransformers", 1);
+        ReflectionTestUtils.setField(oplogStreamer, "oplog", oplog);
+        ReflectionTestUtils.setField(oplogStreamer, "connectors", Collections.singletonList(mock(Connector.class)));
+        ReflectionTestUtils.setField(oplogStreamer, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(oplogStreamer, "checkpointManager", checkpointManager);
+        ReflectionTestUtils.setField(oplogStreamer, "shardDiscovery", shardDiscovery);
+        ReflectionTestUtils.setField(oplogStreamer, "updateLookup", mock(UpdateLookup.class));
+        ReflectionTestUtils.setField(oplogStreamer, "writeCoalescer", new WriteCoalescer(false, meterRegistry));
+        ReflectionTestUtils.setField(oplogStreamer, "operationTransformer", operationTransformer);
+        ReflectionTestUtils.setField(oplogStreamer, "reimportBuffer", new ReimportBuffer());
+        ReflectionTestUtils.setField(oplogStreamer, "filterPushdown", filterPushdown);
+        ReflectionTestUtils.setField(oplogStreamer, "leaseManager", mock(LeaseManager.class));
+        ReflectionTestUtils.setField(oplogStreamer, "meterRegistry", meterRegistry);
+        oplogStreamer.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        oplogStreamer.shutdown();
+    }
+
+    @Test
+    void it_should_reopen_a_lost_cursor_after_the_last_entry_read() {
+        cursors.add(new FakeCursor(asList(givenOplog(1), givenOplog(2)), new MongoSocketException("Connection reset", new ServerAddress())));
+        cursors.add(new FakeCursor(Collections.singletonList(givenOplog(3)), null));
+
+        watchFrom(new BsonTimestamp(0, 0));
+
+        assertThat(appliedIds).containsExactly("hero1", "hero2", "hero3");
+        assertThat(oplogQueries).extracting(OplogStreamerTest::lowerBound)
+                .containsExactly(new BsonTimestamp(0, 0), new BsonTimestamp(2, 0));
+        assertThat(restarts("MongoSocketException")).isEqualTo(1);
+    }
+
+    @Test
+    void it_should_retry_from_the_checkpoint_until_a_cursor_recovers() {
+        cursors.add(new FakeCursor(Collections.emptyList(), new MongoSocketException("Connection refused", new ServerAddress())));
+        cursors.add(new FakeCursor(Collections.emptyList(), new MongoSocketException("Connection refused", new ServerAddress())));
+        cursors.add(new FakeCursor(Collections.singletonList(givenOplog(1)), null));
+
+        watchFrom(new BsonTimestamp(0, 0));
+
+        assertThat(appliedIds).containsExactly("hero1");
+        assertThat(oplogQueries).extracting(OplogStreamerTest::lowerBound)
+                .containsExactly(new BsonTimestamp(0, 0), new BsonTimestamp(0, 0), new BsonTimestamp(0, 0));
+        assertThat(restarts("MongoSocketException")).isEqualTo(2);
+    }
+
+    @Test
+    void it_should_stop_on_an_error_that_a_new_cursor_would_not_fix() {
+        MongoQueryException unauthorized = new MongoQueryException(new ServerAddress(), 13, "not authorized on local");
+        cursors.add(new FakeCursor(Collections.singletonList(givenOplog(1)), unauthorized));
+
+        assertThatThrownBy(() -> watchFrom(new BsonTimestamp(0, 0))).isSameAs(unauthorized);
+        assertThat(appliedIds).containsExactly("hero1");
+        assertThat(oplogQueries).hasSize(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void it_should_read_each_shard_from_its_own_position() {
+        Queue<MongoCursor<Document>> firstShardCursors = new LinkedList<>();
+        Queue<MongoCursor<Document>> secondShardCursors = new LinkedList<>();
+        List<Bson> firstShardQueries = new CopyOnWriteArrayList<>();
+        List<Bson> secondShardQueries = new CopyOnWriteArrayList<>();
+        firstShardCursors.add(new FakeCursor(asList(givenOplog(11), givenOplog(12)), null));
+        secondShardCursors.add(new FakeCursor(Collections.singletonList(givenOplog(21)), null));
+        when(shardDiscovery.getShards()).thenReturn(asList(
+                givenShard("shard1", givenOplog(firstShardCursors, firstShardQueries)),
+                givenShard("shard2", givenOplog(secondShardCursors, secondShardQueries))
+        ));
+        when(checkpointManager.getLastKnown("shard1")).thenReturn(Optional.of(new BsonTimestamp(10, 0)));
+        when(checkpointManager.getLastKnown("shard2")).thenReturn(Optional.empty());
+        ReflectionTestUtils.setField(oplogStreamer, "ingestion", OplogStreamer.SHARDED_OPLOG);
+
+        watchFrom(new BsonTimestamp(5, 0));
+
+        assertThat(appliedIds).containsExactlyInAnyOrder("hero11", "hero12", "hero21");
+        assertThat(appliedIds.indexOf("hero11")).isLessThan(appliedIds.indexOf("hero12"));
+        // A shard without position of its own starts from the global checkpoint
+        assertThat(firstShardQueries).extracting(OplogStreamerTest::lowerBound).containsExactly(new BsonTimestamp(10, 0));
+        assertThat(secondShardQueries).extracting(OplogStreamerTest::lowerBound).containsExactly(new BsonTimestamp(5, 0));
+        ArgumentCaptor<Map<String, BsonTimestamp>> startPositions = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointManager).startShards(startPositions.capture());
+        assertThat(startPositions.getValue())
+                .containsOnly(entry("shard1", new BsonTimestamp(10, 0)), entry("shard2", new BsonTimestamp(5, 0)));
+
+        ArgumentCaptor<Map<String, BsonTimestamp>> keptPositions = ArgumentCaptor.forClass(Map.class);
+        verify(checkpointManager, times(3)).keepShards(keptPositions.capture(), anyInt());
+        Map<String, BsonTimestamp> lastPositions = new HashMap<>();
+        keptPositions.getAllValues().forEach(lastPositions::putAll);
+        assertThat(lastPositions)
+                .containsOnly(entry("shard1", new BsonTimestamp(12, 0)), entry("shard2", new BsonTimestamp(21, 0)));
+        verify(checkpointManager, never()).keep(any(BsonTimestamp.class), any(), anyInt());
+    }
+
+    @Test
+    void it_should_double_the_backoff_up_to_its_maximum() {
+        for (int failures = 1; failures <= 12; failures++) {
+            long ceiling = Math.min(30_000, 100L << (failures - 1));
+            for (int i = 0; i < 100; i++) {
+                assertThat(OplogStreamer.backoff(failures, 100, 30_000)).isBetween(ceiling / 2, ceiling);
+            }
+        }
+    }
+
+    private void watchFrom(BsonTimestamp checkpoint) {
+        oplogStreamer.watch(Optional.of(checkpoint), Collections.singletonList(NAMESPACE), entry -> false, () -> false);
+    }
+
+    private double restarts(String cause) {
+        return meterRegistry.counter("streamer.cursor.restarts", "cause", cause).count();
+    }
+
+    private static BsonTimestamp lowerBound(Bson query) {
+        BsonDocument filter = query.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+        return filter.getDocument("ts").getTimestamp("$gt");
+    }
+
+    /**
+     * An oplog handing out the given cursors one after the other, its queries being recorded.
+     */
+    @SuppressWarnings("unchecked")
+    private static MongoDatabase givenOplog(Queue<MongoCursor<Document>> cursors, List<Bson> queries) {
+        MongoDatabase oplog = mock(MongoDatabase.class);
+        MongoCollection<Document> oplogCollection = mock(MongoCollection.class);
+        when(oplog.getCollection("oplog.rs")).thenReturn(oplogCollection);
+        FindIterable<Document> checkpointLookup = mock(FindIterable.class, RETURNS_SELF);
+        when(checkpointLookup.first()).thenReturn(new Document());
+        when(oplogCollection.find(any(Bson.class))).thenReturn(checkpointLookup);
+        when(oplogCollection.find(any(Bson.class), eq(Document.class))).thenAnswer(invocation -> {
+            queries.add(invocation.getArgument(0));
+            FindIterable<Document> documents = mock(FindIterable.class, RETURNS_SELF);
+            when(documents.iterator()).thenReturn(cursors.remove());
+            return documents;
+        });
+        return oplog;
+    }
+
+    private static Shard givenShard(String name, MongoDatabase oplog) {
+        MongoClient client = mock(MongoClient.class);
+        when(client.getDatabase("local")).thenReturn(oplog);
+        return new Shard(name, client);
+    }
+
+    private static Document givenOplog(int time) {
+        return new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", NAMESPACE)
+                .append("op", "i")
+                .append("o", new Document("_id", "hero" + time));
+    }
+
+    /**
+     * Hands out its documents then fails, or ends like a tailable cursor whose collection was dropped.
+     */
+    private static class FakeCursor implements MongoCursor<Document> {
+        private final Iterator<Document> documents;
+        private final MongoException failure;
+
+        private FakeCursor(List<Document> documents, MongoException failure) {
+            this.documents = new ArrayList<>(documents).iterator();
+            this.failure = failure;
+        }
+
+        @Override
+        public Document tryNext() {
+            if (documents.hasNext()) {
+                return documents.next();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return documents.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            if (!documents.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return documents.next();
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return new ServerAddress();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
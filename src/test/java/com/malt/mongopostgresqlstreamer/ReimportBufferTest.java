@@ -0,0 +1,44 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReimportBufferTest {
+
+    private ReimportBuffer reimportBuffer;
+
+    @BeforeEach
+    void setUp() {
+        reimportBuffer = new ReimportBuffer();
+    }
+
+    @Test
+    void it_should_hold_back_entries_of_the_reimported_collection_until_drained() {
+        reimportBuffer.start("users", "my_db.users");
+
+        assertThat(reimportBuffer.offer(givenEntry(1, "my_db.users"))).containsExactly("users");
+        assertThat(reimportBuffer.offer(givenEntry(2, "my_db.teams"))).isEmpty();
+        assertThat(reimportBuffer.offer(givenEntry(3, "my_db.users"))).containsExactly("users");
+
+        List<OplogEntry> applied = new ArrayList<>();
+        reimportBuffer.drain("users", applied::addAll);
+
+        assertThat(applied).extracting(entry -> entry.getTimestamp().getTime()).containsExactly(1, 3);
+        assertThat(reimportBuffer.offer(givenEntry(4, "my_db.users"))).isEmpty();
+    }
+
+    private static OplogEntry givenEntry(int time, String namespace) {
+        return OplogEntry.fromOplog(new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", namespace)
+                .append("op", "i")
+                .append("o", new Document("_id", time)));
+    }
+}
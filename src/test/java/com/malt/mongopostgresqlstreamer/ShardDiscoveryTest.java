@@ -0,0 +1,93 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.Shard;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShardDiscoveryTest {
+
+    private MongoClient mongos;
+    private ShardDiscovery shardDiscovery;
+
+    @BeforeEach
+    void setUp() {
+        mongos = mock(MongoClient.class);
+        shardDiscovery = new ShardDiscovery();
+        ReflectionTestUtils.setField(shardDiscovery, "uri", "mongodb://mongos:27017/?connectTimeoutMS=2000");
+        ReflectionTestUtils.setField(shardDiscovery, "mongoClient", mongos);
+    }
+
+    @AfterEach
+    void tearDown() {
+        shardDiscovery.close();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void it_should_connect_to_each_shard_of_the_cluster() {
+        givenShards(
+                new Document("_id", "shard1").append("host", "rs1/host1:27017,host2:27017"),
+                new Document("_id", "shard2").append("host", "host3:27018")
+        );
+
+        List<Shard> shards = shardDiscovery.getShards();
+
+        assertThat(shards).extracting(Shard::getName).containsExactly("shard1", "shard2");
+        MongoClient firstShard = shards.get(0).getClient();
+        assertThat(firstShard.getAllAddress()).containsExactly(new ServerAddress("host1", 27017), new ServerAddress("host2", 27017));
+        assertThat(firstShard.getMongoClientOptions().getRequiredReplicaSetName()).isEqualTo("rs1");
+        assertThat(firstShard.getMongoClientOptions().getConnectTimeout()).isEqualTo(2000);
+        MongoClient secondShard = shards.get(1).getClient();
+        assertThat(secondShard.getAllAddress()).containsExactly(new ServerAddress("host3", 27018));
+        assertThat(secondShard.getMongoClientOptions().getRequiredReplicaSetName()).isNull();
+    }
+
+    @Test
+    void it_should_discover_the_shards_once() {
+        givenShards(new Document("_id", "shard1").append("host", "rs1/host1:27017"));
+
+        assertThat(shardDiscovery.getShards()).isSameAs(shardDiscovery.getShards());
+    }
+
+    @Test
+    void it_should_fail_without_any_shard() {
+        givenShards();
+
+        assertThatThrownBy(() -> shardDiscovery.getShards())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("No shard found");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenShards(Document... shards) {
+        MongoDatabase config = mock(MongoDatabase.class);
+        MongoCollection<Document> collection = mock(MongoCollection.class);
+        FindIterable<Document> documents = mock(FindIterable.class);
+        MongoCursor<Document> cursor = mock(MongoCursor.class);
+        Iterator<Document> iterator = asList(shards).iterator();
+        when(mongos.getDatabase("config")).thenReturn(config);
+        when(config.getCollection("shards")).thenReturn(collection);
+        when(collection.find()).thenReturn(documents);
+        when(documents.iterator()).thenReturn(cursor);
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next());
+    }
+}
@@ -3,15 +3,27 @@ package com.malt.mongopostgresqlstreamer;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
+import com.malt.mongopostgresqlstreamer.checkpoints.ImportProgressStore;
+import com.malt.mongopostgresqlstreamer.checkpoints.PostgreSqlCheckpointStore;
 import com.malt.mongopostgresqlstreamer.config.StreamerTestConfig;
+import com.malt.mongopostgresqlstreamer.connectors.postgres.PostgreSqlConnector;
+import com.malt.mongopostgresqlstreamer.model.Checkpoint;
+import com.malt.mongopostgresqlstreamer.model.ImportRange;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.malt.mongopostgresqlstreamer.monitoring.ImportMonitor;
 import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.boot.test.util.EnvironmentTestUtils;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
@@ -20,17 +32,38 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.PostgreSQLContainer;
 
+import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.set;
+import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.springframework.test.jdbc.JdbcTestUtils.countRowsInTable;
 
 @SpringBootTest(classes = StreamerTestConfig.class)
@@ -40,6 +73,8 @@ import static org.springframework.test.jdbc.JdbcTestUtils.countRowsInTable;
 class StreamerIntegrationTest {
     private static final String DATA_FILE_NAME = "data-it.json";
     private static final int MONGO_PORT = 27017;
+    private static final long STREAMING_TIMEOUT_MS = 60_000;
+    private static final String CHECKPOINT_TABLE = "mongo_streamer_checkpoint_it";
     private static final PostgreSQLContainer postgreSQLContainer =
             (PostgreSQLContainer) new PostgreSQLContainer("postgres:10.4")
                     .withDatabaseName("streamer")
@@ -61,6 +96,36 @@ class StreamerIntegrationTest {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private OplogStreamer oplogStreamer;
+
+    @Autowired
+    private CheckpointManager checkpointManager;
+
+    @Autowired
+    private MappingsManager mappingsManager;
+
+    @Autowired
+    private ImportProgressStore importProgressStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private OplogSpool oplogSpool;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @SpyBean
+    private OperationTransformer operationTransformer;
+
+    @SpyBean
+    private ImportMonitor importMonitor;
+
+    @SpyBean
+    private PostgreSqlConnector postgreSqlConnector;
+
     @BeforeAll
     static void setUp() throws IOException, InterruptedException {
         postgreSQLContainer.start();
@@ -86,17 +151,291 @@ class StreamerIntegrationTest {
         }
     }
 
+    @BeforeEach
+    void dropData() {
+        superheros().drop();
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + CHECKPOINT_TABLE);
+    }
+
     @Test
     void should_import_data_from_mongo_to_pgsql() throws IOException {
         loadData();
 
-        initialImporter.start();
+        initialImporter.start(new BsonTimestamp());
+
+        assertThat(countRowsInTable(jdbcTemplate, "superheros")).isEqualTo(20);
+        assertThat(countRowsInTable(jdbcTemplate, "superhero_characters")).isEqualTo(33);
+        assertThat(countRowsInTable(jdbcTemplate, "superheros_marvel")).isEqualTo(10);
+    }
+
+    @Test
+    void should_apply_the_queued_batches_before_failing_when_a_stage_fails() throws IOException {
+        loadData();
+        BsonTimestamp position = checkpointManager.getCurrentPosition();
+        initialImporter.start(position);
+        doThrow(new IllegalStateException("Unable to transform the entry"))
+                .when(operationTransformer)
+                .prepare(argThat((OplogEntry entry) -> "it-failure".equals(entry.getDocumentId())));
+
+        insertSuperhero("it-before-failure-1");
+        insertSuperhero("it-before-failure-2");
+        insertSuperhero("it-failure");
+
+        assertThatThrownBy(() -> oplogStreamer.watch(
+                Optional.of(position), mappingsManager.mappedNamespaces(), entry -> false, () -> false))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Unable to transform the entry");
+        assertThat(superheroExists("it-before-failure-1")).isTrue();
+        assertThat(superheroExists("it-before-failure-2")).isTrue();
+        assertThat(superheroExists("it-failure")).isFalse();
+    }
+
+    @Test
+    void should_restart_from_the_checkpoint_without_applying_entries_again() throws IOException {
+        loadData();
+        BsonTimestamp position = checkpointManager.getCurrentPosition();
+        initialImporter.start(position);
+        checkpointManager.keep(position);
+        checkpointManager.flush();
+
+        insertSuperhero("it-first-run");
+        streamUntil(() -> superheroExists("it-first-run"));
+        checkpointManager.flush();
+
+        // Gone from the table only: applying its insert again would bring it back
+        jdbcTemplate.update("DELETE FROM superhero_characters WHERE superhero_id = ?", "it-first-run");
+        jdbcTemplate.update("DELETE FROM superheros WHERE id = ?", "it-first-run");
+        insertSuperhero("it-second-run");
+        streamUntil(() -> superheroExists("it-second-run"));
+
+        assertThat(superheroExists("it-first-run")).isFalse();
+    }
+
+    @Test
+    void should_resume_an_interrupted_import() throws IOException {
+        ReflectionTestUtils.setField(initialImporter, "resumable", true);
+        try {
+            importThenResume();
+        } finally {
+            ReflectionTestUtils.setField(initialImporter, "resumable", false);
+        }
 
         assertThat(countRowsInTable(jdbcTemplate, "superheros")).isEqualTo(20);
         assertThat(countRowsInTable(jdbcTemplate, "superhero_characters")).isEqualTo(33);
         assertThat(countRowsInTable(jdbcTemplate, "superheros_marvel")).isEqualTo(10);
     }
 
+    private void importThenResume() throws IOException {
+        loadData();
+        BsonTimestamp position = checkpointManager.getCurrentPosition();
+        initialImporter.start(position);
+
+        // As if the import had stopped after the first 12 documents of the collection
+        List<Object> ids = superheros().find()
+                .sort(ascending("_id"))
+                .map(document -> document.get("_id"))
+                .into(new ArrayList<>());
+        for (Object id : ids.subList(12, ids.size())) {
+            jdbcTemplate.update("DELETE FROM superhero_characters WHERE superhero_id = ?", id.toString());
+            jdbcTemplate.update("DELETE FROM superheros WHERE id = ?", id.toString());
+        }
+        ImportRange range = importProgressStore.ranges("superheros").get(0);
+        range.setLastId(ids.get(11));
+        range.setRows(12);
+        range.setDone(false);
+        importProgressStore.save(range);
+        jdbcTemplate.update("UPDATE mongo_streamer_import SET finalized = FALSE WHERE mapping_name = ?", "superheros");
+
+        initialImporter.resume(position);
+    }
+
+    @Test
+    void should_remove_the_rows_of_deleted_or_rejected_documents_when_reimporting_with_a_query() throws IOException {
+        loadData();
+        initialImporter.start(checkpointManager.getCurrentPosition());
+        List<Object> marvelIds = superheros().find(eq("publisher", "Marvel Comics"))
+                .sort(ascending("_id"))
+                .map(document -> document.get("_id"))
+                .into(new ArrayList<>());
+
+        superheros().deleteOne(eq("_id", marvelIds.get(0)));
+        superheros().updateOne(eq("_id", marvelIds.get(1)), set("publisher", "DC Comics"));
+        initialImporter.reimport("superheros_marvel", new Document("publisher", "DC Comics"));
+
+        assertThat(countRowsInTable(jdbcTemplate, "superheros_marvel")).isEqualTo(8);
+        assertThat(jdbcTemplate.queryForList("SELECT id FROM superheros_marvel", String.class))
+                .doesNotContain(marvelIds.get(0).toString(), marvelIds.get(1).toString());
+    }
+
+    @Test
+    void should_split_a_collection_in_ranges_without_gaps_or_overlaps() {
+        superheros().insertMany(IntStream.range(0, 500)
+                .mapToObj(i -> new Document("superhero", "superhero" + i))
+                .collect(toList()));
+        List<Bson> ranges = initialImporter.splitRanges(superheros(), 4);
+        // Inserted after the sampling, they can only be picked up by the range of the other types
+        superheros().insertOne(new Document("_id", 42).append("superhero", "integer id"));
+        superheros().insertOne(new Document("_id", "string-id").append("superhero", "string id"));
+
+        List<Object> rangeIds = new ArrayList<>();
+        for (Bson range : ranges) {
+            superheros().find(range).map(document -> document.get("_id")).into(rangeIds);
+        }
+
+        List<Object> ids = superheros().find().map(document -> document.get("_id")).into(new ArrayList<>());
+        assertThat(ranges).hasSize(5);
+        assertThat(rangeIds).doesNotHaveDuplicates().hasSameSizeAs(ids).hasSameElementsAs(ids);
+    }
+
+    @Test
+    void should_swap_in_the_caught_up_shadow_tables_in_a_single_transaction() throws IOException {
+        loadData();
+        initialImporter.start(checkpointManager.getCurrentPosition());
+        // Written once the collection is copied: only the spooled oplog can bring it to the shadow table
+        doAnswer(invocation -> {
+            insertSuperhero("it-during-import");
+            return invocation.callRealMethod();
+        }).when(importMonitor).finalizing("superheros");
+        List<Object> swapTransactions = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            swapTransactions.add(TransactionSynchronizationManager.getResource(dataSource));
+            return invocation.callRealMethod();
+        }).when(postgreSqlConnector).swapTables(any(), any(), any(), any());
+
+        ReflectionTestUtils.setField(initialImporter, "shadow", true);
+        ReflectionTestUtils.setField(oplogSpool, "enabled", true);
+        try {
+            initialImporter.start(checkpointManager.getCurrentPosition());
+        } finally {
+            ReflectionTestUtils.setField(initialImporter, "shadow", false);
+            ReflectionTestUtils.setField(oplogSpool, "enabled", false);
+        }
+
+        assertThat(superheroExists("it-during-import")).isTrue();
+        assertThat(countRowsInTable(jdbcTemplate, "superheros")).isEqualTo(21);
+        assertThat(countRowsInTable(jdbcTemplate, "superheros_marvel")).isEqualTo(10);
+        assertThat(swapTransactions).hasSize(2).doesNotContainNull();
+        assertThat(new HashSet<>(swapTransactions)).hasSize(1);
+        long deadline = System.currentTimeMillis() + STREAMING_TIMEOUT_MS;
+        while (tablesIn("mongo_streamer_shadow_retired") > 0) {
+            assertThat(System.currentTimeMillis()).as("Replaced tables dropped in time").isLessThan(deadline);
+            sleep(100);
+        }
+        assertThat(tablesIn("mongo_streamer_shadow")).isZero();
+    }
+
+    @Test
+    void should_save_a_checkpoint_row_per_lane() {
+        PostgreSqlCheckpointStore checkpointStore = givenCheckpointStore(3);
+
+        checkpointStore.save(new Checkpoint(new BsonTimestamp(5, 0), null));
+
+        assertThat(countRowsInTable(jdbcTemplate, CHECKPOINT_TABLE)).isEqualTo(3);
+        assertThat(checkpointStore.load().map(Checkpoint::getTimestamp)).contains(new BsonTimestamp(5, 0));
+    }
+
+    @Test
+    void should_resume_from_the_oldest_lane() {
+        PostgreSqlCheckpointStore checkpointStore = givenCheckpointStore(3);
+
+        givenLanes(checkpointStore, 10, 7, 12);
+
+        assertThat(checkpointStore.load().map(Checkpoint::getTimestamp)).contains(new BsonTimestamp(7, 0));
+    }
+
+    @Test
+    void should_skip_the_entries_already_committed_by_their_lane() {
+        PostgreSqlCheckpointStore checkpointStore = givenCheckpointStore(3);
+        int[] laneTimes = {10, 7, 12};
+        givenLanes(checkpointStore, laneTimes);
+
+        Predicate<OplogEntry> alreadyApplied = checkpointStore.alreadyApplied();
+
+        List<OplogEntry> entries = IntStream.range(0, 30)
+                .mapToObj(id -> givenOplogEntry(8, "superhero" + id))
+                .collect(toList());
+        assertThat(entries.stream().map(entry -> entry.partition(3)).distinct().count()).isEqualTo(3);
+        for (OplogEntry entry : entries) {
+            boolean committed = laneTimes[entry.partition(3)] >= 8;
+            assertThat(alreadyApplied.test(entry)).as("Entry of lane %d", entry.partition(3)).isEqualTo(committed);
+        }
+        assertThat(alreadyApplied.test(givenOplogEntry(13, "superhero0"))).isFalse();
+    }
+
+    @Test
+    void should_reset_the_lanes_when_their_number_changes() {
+        givenLanes(givenCheckpointStore(3), 10, 7, 12);
+        PostgreSqlCheckpointStore checkpointStore = givenCheckpointStore(2);
+
+        Predicate<OplogEntry> alreadyApplied = checkpointStore.alreadyApplied();
+
+        assertThat(alreadyApplied.test(givenOplogEntry(1, "superhero0"))).isFalse();
+        assertThat(jdbcTemplate.queryForList("SELECT lanes, ts FROM " + CHECKPOINT_TABLE + " ORDER BY lane"))
+                .extracting(row -> row.get("lanes"), row -> row.get("ts"))
+                .containsExactly(
+                        tuple(2, new BsonTimestamp(7, 0).getValue()),
+                        tuple(2, new BsonTimestamp(7, 0).getValue())
+                );
+    }
+
+    private void streamUntil(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + STREAMING_TIMEOUT_MS;
+        oplogStreamer.watch(
+                checkpointManager.getLastKnown(),
+                mappingsManager.mappedNamespaces(),
+                checkpointManager.alreadyApplied(),
+                () -> condition.getAsBoolean() || System.currentTimeMillis() > deadline
+        );
+    }
+
+    private PostgreSqlCheckpointStore givenCheckpointStore(int numberOfLanes) {
+        PostgreSqlCheckpointStore checkpointStore =
+                new PostgreSqlCheckpointStore(jdbcTemplate, transactionManager, "it", CHECKPOINT_TABLE, numberOfLanes);
+        checkpointStore.createTable();
+        return checkpointStore;
+    }
+
+    private void givenLanes(PostgreSqlCheckpointStore checkpointStore, int... laneTimes) {
+        for (int lane = 0; lane < laneTimes.length; lane++) {
+            checkpointStore.saveInTransaction(lane, new Checkpoint(new BsonTimestamp(laneTimes[lane], 0), null));
+        }
+    }
+
+    private static OplogEntry givenOplogEntry(int time, String id) {
+        return OplogEntry.fromOplog(new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", "my_db.superheros")
+                .append("op", "i")
+                .append("o", new Document("_id", id)));
+    }
+
+    private void insertSuperhero(String id) {
+        superheros().insertOne(new Document("_id", id)
+                .append("superhero", id)
+                .append("publisher", "DC Comics")
+                .append("characters", Arrays.asList(id)));
+    }
+
+    private int tablesIn(String schema) {
+        return jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = ?", Integer.class, schema);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean superheroExists(String id) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM superheros WHERE id = ?", Integer.class, id) > 0;
+    }
+
+    private MongoCollection<Document> superheros() {
+        return mongoClient.getDatabase("my_db").getCollection("superheros");
+    }
+
     private void loadData() throws IOException {
         InputStream is = new ClassPathResource(DATA_FILE_NAME).getInputStream();
         JsonArray data = new JsonParser().parse(new InputStreamReader(is)).getAsJsonArray();
@@ -105,8 +444,6 @@ class StreamerIntegrationTest {
             documents.add(Document.parse(jsonElement.toString()));
         }
 
-        mongoClient.getDatabase("my_db")
-                .getCollection("superheros")
-                .insertMany(documents);
+        superheros().insertMany(documents);
     }
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.connectors.Connector;
+import com.malt.mongopostgresqlstreamer.model.DatabaseMapping;
+import com.malt.mongopostgresqlstreamer.model.FlattenMongoDocument;
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import com.mongodb.Block;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+class UpdateLookupTest {
+
+    private final Map<Object, Document> storedDocuments = new HashMap<>();
+    private final List<List<Object>> lookedUpIds = new ArrayList<>();
+
+    private MongoClient mongoClient;
+    private MongoCollection<Document> collection;
+    private OperationTransformer operationTransformer;
+    private UpdateLookup updateLookup;
+
+    @BeforeEach
+    void setUp() {
+        ResourceResolverService resourceResolverService = new ResourceResolverService(
+                new DefaultResourceLoader(Thread.currentThread().getContextClassLoader())
+        );
+        String filePath = Objects.requireNonNull(this.getClass().getClassLoader().getResource("mapping.json")).getPath();
+        MappingsManager mappingsManager = new MappingsManager(resourceResolverService, filePath);
+        mappingsManager.read();
+        mongoClient = mock(MongoClient.class);
+        MongoDatabase database = mock(MongoDatabase.class);
+        collection = mock(MongoCollection.class);
+        when(mongoClient.getDatabase("my_mongo_database")).thenReturn(database);
+        when(database.getCollection("my_mongo_collection")).thenReturn(collection);
+        when(collection.find(any(Bson.class))).thenAnswer(invocation -> givenResults(invocation.getArgument(0)));
+
+        operationTransformer = new OperationTransformer();
+        ReflectionTestUtils.setField(operationTransformer, "mappingsManager", mappingsManager);
+        ReflectionTestUtils.setField(operationTransformer, "mongoClient", mongoClient);
+
+        updateLookup = new UpdateLookup();
+        ReflectionTestUtils.setField(updateLookup, "batched", true);
+        ReflectionTestUtils.setField(updateLookup, "mappingsManager", mappingsManager);
+        ReflectionTestUtils.setField(updateLookup, "mongoClient", mongoClient);
+    }
+
+    @Test
+    void it_should_apply_change_stream_updates_without_looking_them_up_again() {
+        Document fullDocument = new Document("_id", "hulk").append("description", "Green");
+        OplogEntry entry = OplogEntry.fromChangeStream(new ChangeStreamDocument<>(
+                new BsonDocument("_data", new BsonString("token")),
+                new MongoNamespace("my_mongo_database.my_mongo_collection"),
+                fullDocument,
+                new BsonDocument("_id", new BsonString("hulk")),
+                new BsonTimestamp(1, 0),
+                OperationType.UPDATE,
+                new UpdateDescription(emptyList(), new BsonDocument("description", new BsonString("Green")))
+        ));
+        Connector connector = mock(Connector.class);
+
+        updateLookup.prefetch(singletonList(entry), operationTransformer::needsLookup);
+        operationTransformer.prepare(entry).forEach(write -> write.accept(connector));
+
+        verifyZeroInteractions(mongoClient);
+        ArgumentCaptor<FlattenMongoDocument> documents = ArgumentCaptor.forClass(FlattenMongoDocument.class);
+        verify(connector, times(2)).update(anyString(), documents.capture(), any(DatabaseMapping.class));
+        assertThat(documents.getAllValues())
+                .extracting(document -> document.getValues().get("description"))
+                .containsExactly("Green", "Green");
+    }
+
+    @Test
+    void it_should_look_up_the_updates_of_a_batch_with_chunked_in_queries() {
+        List<OplogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            storedDocuments.put("hero" + i, new Document("_id", "hero" + i).append("description", "Hero " + i));
+            entries.add(givenUpdate(i, "hero" + i));
+        }
+        entries.add(givenUpdate(2500, "hero0"));
+
+        updateLookup.prefetch(entries, operationTransformer::needsLookup);
+
+        verify(collection, times(3)).find(any(Bson.class));
+        assertThat(lookedUpIds).extracting(List::size).containsExactly(1000, 1000, 500);
+        assertThat(lookedUpIds.stream().flatMap(List::stream).distinct().count()).isEqualTo(2500);
+        assertThat(entries).allMatch(OplogEntry::isLookedUp);
+        assertThat(entries.get(42).getFullDocument().getString("description")).isEqualTo("Hero 42");
+        assertThat(entries.get(2500).getFullDocument().getString("description")).isEqualTo("Hero 0");
+    }
+
+    @Test
+    void it_should_skip_the_updates_of_documents_deleted_since() {
+        storedDocuments.put("hulk", new Document("_id", "hulk").append("description", "Green"));
+        OplogEntry hulk = givenUpdate(1, "hulk");
+        OplogEntry ghost = givenUpdate(2, "ghost");
+        Connector connector = mock(Connector.class);
+
+        updateLookup.prefetch(asList(hulk, ghost), operationTransformer::needsLookup);
+        operationTransformer.prepare(ghost).forEach(write -> write.accept(connector));
+
+        // The missing document isn't looked up again: its delete follows in the oplog
+        verify(collection, times(1)).find(any(Bson.class));
+        assertThat(lookedUpIds).containsExactly(asList("hulk", "ghost"));
+        assertThat(ghost.isLookedUp()).isTrue();
+        assertThat(ghost.getFullDocument()).isNull();
+        verify(connector, never()).update(anyString(), any(FlattenMongoDocument.class), any(DatabaseMapping.class));
+    }
+
+    @Test
+    void it_should_look_up_each_update_when_the_batched_lookup_is_disabled() {
+        ReflectionTestUtils.setField(updateLookup, "batched", false);
+        storedDocuments.put("hulk", new Document("_id", "hulk").append("description", "Green"));
+        OplogEntry hulk = givenUpdate(1, "hulk");
+        Connector connector = mock(Connector.class);
+
+        updateLookup.prefetch(singletonList(hulk), operationTransformer::needsLookup);
+        assertThat(hulk.isLookedUp()).isFalse();
+        operationTransformer.prepare(hulk).forEach(write -> write.accept(connector));
+
+        verify(collection, times(2)).find(any(Bson.class));
+        verify(connector, times(2)).update(anyString(), any(FlattenMongoDocument.class), any(DatabaseMapping.class));
+    }
+
+    /**
+     * Answers both the {@code $in} lookups of a batch and the lookup of a single document.
+     */
+    @SuppressWarnings("unchecked")
+    private FindIterable<Document> givenResults(Bson filter) {
+        BsonValue idFilter = filter.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).get("_id");
+        List<Object> ids = (idFilter.isDocument() ? idFilter.asDocument().getArray("$in").getValues() : singletonList(idFilter))
+                .stream()
+                .map(id -> (Object) id.asString().getValue())
+                .collect(toList());
+        lookedUpIds.add(ids);
+        List<Document> results = ids.stream().map(storedDocuments::get).filter(Objects::nonNull).collect(toList());
+
+        FindIterable<Document> documents = mock(FindIterable.class);
+        when(documents.projection(any())).thenReturn(documents);
+        when(documents.first()).thenReturn(results.isEmpty() ? null : results.get(0));
+        doAnswer(invocation -> {
+            Block<Document> block = invocation.getArgument(0);
+            results.forEach(block::apply);
+            return null;
+        }).when(documents).forEach(any(Block.class));
+        return documents;
+    }
+
+    private static OplogEntry givenUpdate(int time, String id) {
+        return OplogEntry.fromOplog(new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", "my_mongo_database.my_mongo_collection")
+                .append("op", "u")
+                .append("o", new Document("$set", new Document("description", "updated")))
+                .append("o2", new Document("_id", id)));
+    }
+}
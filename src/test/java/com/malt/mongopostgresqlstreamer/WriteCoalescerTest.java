@@ -0,0 +1,85 @@
+package com.malt.mongopostgresqlstreamer;
+
+import com.malt.mongopostgresqlstreamer.model.OplogEntry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class WriteCoalescerTest {
+
+    private MeterRegistry meterRegistry;
+    private WriteCoalescer writeCoalescer;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        writeCoalescer = new WriteCoalescer(true, meterRegistry);
+    }
+
+    @Test
+    void it_should_keep_only_the_final_state_of_each_document() {
+        List<OplogEntry> entries = asList(
+                givenEntry(1, "i", "counter"),
+                givenEntry(2, "u", "counter"),
+                givenEntry(3, "i", "session"),
+                givenEntry(4, "u", "counter"),
+                givenEntry(5, "u", "session"),
+                givenEntry(6, "d", "session"),
+                givenEntry(7, "i", "other")
+        );
+
+        List<OplogEntry> coalesced = writeCoalescer.coalesce(entries);
+
+        assertThat(coalesced)
+                .extracting(OplogEntry::getDocumentId, OplogEntry::getOperation, OplogEntry::isCoalesced)
+                .containsExactly(
+                        tuple("counter", "u", true),
+                        tuple("session", "d", false),
+                        tuple("other", "i", false)
+                );
+        assertThat(meterRegistry.counter("streamer.coalescing.received").count()).isEqualTo(7);
+        assertThat(meterRegistry.counter("streamer.coalescing.collapsed").count()).isEqualTo(4);
+    }
+
+    @Test
+    void it_should_not_flag_a_single_update() {
+        List<OplogEntry> coalesced = writeCoalescer.coalesce(asList(
+                givenEntry(1, "u", "counter"),
+                givenEntry(2, "u", "session")
+        ));
+
+        assertThat(coalesced)
+                .extracting(OplogEntry::getDocumentId, OplogEntry::isCoalesced)
+                .containsExactly(tuple("counter", false), tuple("session", false));
+    }
+
+    @Test
+    void it_should_keep_every_operation_when_disabled() {
+        writeCoalescer = new WriteCoalescer(false, meterRegistry);
+        List<OplogEntry> entries = asList(givenEntry(1, "i", "counter"), givenEntry(2, "u", "counter"));
+
+        assertThat(writeCoalescer.coalesce(entries)).hasSize(2);
+    }
+
+    private static OplogEntry givenEntry(int time, String operation, String id) {
+        Document oplog = new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", "my_db.my_collection")
+                .append("op", operation);
+        if ("u".equals(operation)) {
+            oplog.append("o", new Document("$set", new Document("value", time)))
+                    .append("o2", new Document("_id", id));
+        } else {
+            oplog.append("o", new Document("_id", id));
+        }
+        return OplogEntry.fromOplog(oplog);
+    }
+}
@@ -0,0 +1,91 @@
+package com.malt.mongopostgresqlstreamer.cluster;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LeaseManagerTest {
+
+    private static final String NAMESPACE = "my_db.users";
+
+    private JdbcTemplate jdbcTemplate;
+    private LeaseManager leaseManager;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        leaseManager = new LeaseManager();
+        ReflectionTestUtils.setField(leaseManager, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(leaseManager, "node", "node-1");
+        ReflectionTestUtils.setField(leaseManager, "identifier", "test");
+        ReflectionTestUtils.setField(leaseManager, "fencingTable", "mongo_streamer_lease");
+        ReflectionTestUtils.setField(leaseManager, "leaseDuration", 30_000L);
+    }
+
+    @Test
+    void it_should_let_the_owner_of_the_current_epoch_apply_its_operations() {
+        givenLease(NAMESPACE, 3, System.currentTimeMillis());
+        givenFencedEpoch(NAMESPACE, 3);
+
+        leaseManager.checkLeases(singletonList(NAMESPACE));
+
+        assertThat(leaseManager.isRebalanceRequested()).isFalse();
+    }
+
+    @Test
+    void it_should_fence_out_a_streamer_whose_lease_was_taken_over() {
+        givenLease(NAMESPACE, 3, System.currentTimeMillis());
+        givenFencedEpoch(NAMESPACE, 4);
+
+        assertThatThrownBy(() -> leaseManager.checkLeases(singletonList(NAMESPACE)))
+                .isInstanceOf(LeaseLostException.class)
+                .hasMessageContaining("taken over");
+        assertThat(leaseManager.isRebalanceRequested()).isTrue();
+        // Nothing else is applied for this namespace until it is acquired again
+        assertThatThrownBy(() -> leaseManager.checkLeases(singletonList(NAMESPACE)))
+                .isInstanceOf(LeaseLostException.class)
+                .hasMessageContaining("not held");
+    }
+
+    @Test
+    void it_should_fence_out_a_streamer_whose_lease_was_not_renewed_in_time() {
+        givenLease(NAMESPACE, 3, System.currentTimeMillis() - 31_000);
+        givenFencedEpoch(NAMESPACE, 3);
+
+        assertThatThrownBy(() -> leaseManager.checkLeases(singletonList(NAMESPACE)))
+                .isInstanceOf(LeaseLostException.class)
+                .hasMessageContaining("not renewed in time");
+        assertThat(leaseManager.isRebalanceRequested()).isTrue();
+    }
+
+    @Test
+    void it_should_refuse_a_namespace_it_does_not_own() {
+        assertThatThrownBy(() -> leaseManager.checkLeases(singletonList(NAMESPACE)))
+                .isInstanceOf(LeaseLostException.class)
+                .hasMessageContaining("not held");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenLease(String namespace, long epoch, long renewal) {
+        ((Set<String>) ReflectionTestUtils.getField(leaseManager, "ownedNamespaces")).add(namespace);
+        ((Map<String, Long>) ReflectionTestUtils.getField(leaseManager, "epochs")).put(namespace, epoch);
+        ((Map<String, Long>) ReflectionTestUtils.getField(leaseManager, "renewals")).put(namespace, renewal);
+    }
+
+    private void givenFencedEpoch(String namespace, long epoch) {
+        when(jdbcTemplate.queryForList(anyString(), eq(Long.class), eq("test"), eq(namespace)))
+                .thenReturn(singletonList(epoch));
+    }
+}
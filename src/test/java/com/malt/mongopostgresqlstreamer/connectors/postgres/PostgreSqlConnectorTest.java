@@ -16,10 +16,13 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class PostgreSqlConnectorTest {
 
@@ -57,6 +60,21 @@ class PostgreSqlConnectorTest {
                     );
         }
 
+        @Test
+        void it_should_finalize_table_without_adding_primary_key_twice() {
+            TableMapping tableMapping = givenTableUsersMapping();
+            tableMapping.setIndices(singletonList("INDEX idx_users_name ON users (name)"));
+            DatabaseMapping dbMapping = givenDatabaseMapping("users", tableMapping);
+            when(sqlExecutor.hasPrimaryKey("users")).thenReturn(true);
+
+            connector.addConstraints(tableMapping.getMappingName(), dbMapping);
+
+            verify(sqlExecutor).setTableAsLogged("users");
+            verify(sqlExecutor, never()).addPrimaryKey(any(), any());
+            verify(sqlExecutor).createIndexes(singletonList("INDEX idx_users_name ON users (name)"));
+            verify(sqlExecutor).analyze("users");
+        }
+
         private Map<String, Object> givenUser() {
             Map<String, Object> user = new HashMap<>();
             user.put("_id", UUID.randomUUID().toString());
@@ -1,6 +1,10 @@
 package com.malt.mongopostgresqlstreamer.model;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 
@@ -130,6 +134,85 @@ class FlattenMongoDocumentTest {
         assertThat(members.get(1).get("name")).isEqualTo("Iron Man");
     }
 
+    @Test
+    void it_should_flatten_like_the_json_flattening() {
+        Document document = new Document("_id", new ObjectId())
+                .append("name", "Tony \"Iron Man\" Stark \u00e9")
+                .append("active", true)
+                .append("missing", null)
+                .append("integer", 42)
+                .append("long", 1234567890123L)
+                .append("double", 1.5)
+                .append("bigDouble", 1.0E20)
+                .append("decimal", new Decimal128(new BigDecimal("12.50")))
+                .append("date", new Date(1534000000000L))
+                .append("oldDate", new Date(-5000000000000L))
+                .append("address", new Document("city", "Paris")
+                        .append("geo", new Document("lat", 48.85).append("updated", new Date(1534000000000L)))
+                        .append("ref", new ObjectId()))
+                .append("tags", asList("a", "b"))
+                .append("members", asList(givenTeamMemberDocument("Hulk"), new Document("_id", new ObjectId()).append("since", new Date())))
+                .append("empty", new ArrayList<>());
+
+        Optional<Map<String, Object>> values = DocumentFlattener.flatten(document);
+
+        assertThat(values).contains(FlattenMongoDocument.flattenJson(document));
+    }
+
+    @Test
+    void it_should_leave_unusual_shapes_to_the_json_flattening() {
+        assertThat(DocumentFlattener.flatten(new Document("binary", new Binary(new byte[]{1, 2})))).isEmpty();
+        assertThat(DocumentFlattener.flatten(new Document("nested", new Document()))).isEmpty();
+        assertThat(DocumentFlattener.flatten(new Document("dotted.name", 1))).isEmpty();
+
+        Document document = new Document("_id", "anything").append("nested", new Document());
+        assertThat(FlattenMongoDocument.fromDocument(document).getValues())
+                .isEqualTo(FlattenMongoDocument.flattenJson(document));
+    }
+
+    @Test
+    void it_should_flatten_only_the_mapped_paths() {
+        Document document = new Document("_id", "anything")
+                .append("name", "Hulk")
+                .append("address", new Document("city", "Paris").append("zip", "75001"))
+                .append("profile", new Document("bio", "Green").append("photo", new Binary(new byte[]{1})))
+                .append("members", asList(givenTeamMemberDocument("Iron Man")))
+                .append("unmapped", new Binary(new byte[]{1, 2}));
+        FieldPaths paths = FieldPaths.of(asList("_id", "name", "address", "profile.bio", "members"));
+
+        FlattenMongoDocument flattenMongoDocument = FlattenMongoDocument.fromDocument(document, paths);
+
+        assertThat(flattenMongoDocument.getValues()).containsOnlyKeys(
+                "_id", "name", "address.city", "address.zip", "profile.bio", "members"
+        );
+        assertThat(flattenMongoDocument.getValues())
+                .containsEntry("address.city", "Paris")
+                .containsEntry("profile.bio", "Green")
+                .containsEntry("members", FlattenMongoDocument.flattenJson(document).get("members"));
+    }
+
+    @Test
+    void it_should_flatten_raw_documents_like_decoded_ones() {
+        Document document = new Document("_id", new ObjectId())
+                .append("name", "Hulk")
+                .append("integer", 42)
+                .append("double", 1.5)
+                .append("decimal", new Decimal128(new BigDecimal("12.50")))
+                .append("date", new Date(1534000000000L))
+                .append("address", new Document("city", "Paris").append("geo", new Document("lat", 48.85)))
+                .append("members", asList(givenTeamMemberDocument("Iron Man")))
+                .append("binary", new Binary(new byte[]{1, 2}));
+        RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+
+        assertThat(FlattenMongoDocument.fromRawDocument(raw, FieldPaths.ALL).getValues())
+                .isEqualTo(FlattenMongoDocument.fromDocument(document).getValues());
+
+        FieldPaths paths = FieldPaths.of(asList("_id", "name", "address.city", "members"));
+        assertThat(FlattenMongoDocument.fromRawDocument(raw, paths).getValues())
+                .isEqualTo(FlattenMongoDocument.fromDocument(document, paths).getValues())
+                .containsOnlyKeys("_id", "_creationdate", "name", "address.city", "members");
+    }
+
     private static Document givenTeamMemberDocument(String name) {
         Document document = new Document();
         document.put("id", new ObjectId().toHexString());
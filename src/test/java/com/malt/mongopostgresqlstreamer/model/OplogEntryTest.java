@@ -0,0 +1,83 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OplogEntryTest {
+
+    @Test
+    void it_should_give_the_same_partition_to_every_operation_of_a_document() {
+        OplogEntry insert = givenEntry(1, "i", "my_db.users", "john");
+        OplogEntry update = givenEntry(2, "u", "my_db.users", "john");
+        OplogEntry delete = givenEntry(3, "d", "my_db.users", "john");
+
+        for (int partitions = 1; partitions <= 8; partitions++) {
+            int partition = insert.partition(partitions);
+            assertThat(partition).isBetween(0, partitions - 1);
+            assertThat(update.partition(partitions)).isEqualTo(partition);
+            assertThat(delete.partition(partitions)).isEqualTo(partition);
+        }
+    }
+
+    @Test
+    void it_should_keep_the_order_of_the_operations_within_each_partition() {
+        List<OplogEntry> entries = new ArrayList<>();
+        for (int time = 0; time < 60; time++) {
+            entries.add(givenEntry(time, time % 3 == 0 ? "i" : "u", "my_db.users", "user" + time % 10));
+        }
+
+        List<List<OplogEntry>> partitions = OplogEntry.partition(entries, Function.identity(), 4);
+
+        assertThat(partitions).hasSize(4);
+        assertThat(partitions.stream().mapToInt(List::size).sum()).isEqualTo(entries.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            int partition = i;
+            assertThat(partitions.get(i)).allMatch(entry -> entry.partition(4) == partition);
+            assertThat(partitions.get(i)).isSortedAccordingTo((first, second) -> first.getTimestamp().compareTo(second.getTimestamp()));
+        }
+    }
+
+    @Test
+    void it_should_spread_the_documents_between_the_partitions() {
+        List<OplogEntry> entries = IntStream.range(0, 100)
+                .mapToObj(id -> givenEntry(id, "i", "my_db.users", "user" + id))
+                .collect(toList());
+
+        List<List<OplogEntry>> partitions = OplogEntry.partition(entries, Function.identity(), 4);
+
+        assertThat(partitions).allMatch(partition -> !partition.isEmpty());
+    }
+
+    @Test
+    void it_should_tell_apart_the_same_id_in_different_namespaces() {
+        List<OplogEntry> entries = IntStream.range(0, 100)
+                .mapToObj(id -> givenEntry(id, "i", "my_db.collection" + id, "same-id"))
+                .collect(toList());
+
+        List<List<OplogEntry>> partitions = OplogEntry.partition(entries, Function.identity(), 4);
+
+        assertThat(partitions).allMatch(partition -> !partition.isEmpty());
+    }
+
+    private static OplogEntry givenEntry(int time, String operation, String namespace, String id) {
+        Document oplog = new Document("ts", new BsonTimestamp(time, 0))
+                .append("ns", namespace)
+                .append("op", operation);
+        if ("u".equals(operation)) {
+            oplog.append("o", new Document("$set", new Document("value", time)))
+                    .append("o2", new Document("_id", id));
+        } else {
+            oplog.append("o", new Document("_id", id));
+        }
+        return OplogEntry.fromOplog(oplog);
+    }
+}
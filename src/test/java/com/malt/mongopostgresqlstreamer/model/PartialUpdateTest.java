@@ -0,0 +1,92 @@
+package com.malt.mongopostgresqlstreamer.model;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class PartialUpdateTest {
+
+    @Test
+    void it_should_resolve_set_and_unset_on_mapped_fields() {
+        Document update = new Document("$set", new Document("name", "John Doe").append("address", new Document("city", "Paris")))
+                .append("$unset", new Document("nickname", ""));
+
+        Optional<PartialUpdate> partialUpdate = PartialUpdate.fromOplog(update, givenDocumentKey(), givenUsersMapping());
+
+        assertThat(partialUpdate).isPresent();
+        assertThat(partialUpdate.get().getValues()).hasSize(4).contains(
+                entry("name", "John Doe"),
+                entry("address.city", "Paris"),
+                entry("address.zipcode", null),
+                entry("nickname", null)
+        );
+    }
+
+    @Test
+    void it_should_ignore_unmapped_fields() {
+        Document update = new Document("$v", 1).append("$set", new Document("unmapped", "value"));
+
+        Optional<PartialUpdate> partialUpdate = PartialUpdate.fromOplog(update, givenDocumentKey(), givenUsersMapping());
+
+        assertThat(partialUpdate).isPresent();
+        assertThat(partialUpdate.get().getValues()).isEmpty();
+    }
+
+    @Test
+    void it_should_not_resolve_changes_on_arrays() {
+        Document update = new Document("$set", new Document("comments.0.text", "Nice !"));
+
+        assertThat(PartialUpdate.fromOplog(update, givenDocumentKey(), givenUsersMapping())).isNotPresent();
+    }
+
+    @Test
+    void it_should_not_resolve_changes_inside_a_mapped_field() {
+        Document update = new Document("$set", new Document("name.first", "John"));
+
+        assertThat(PartialUpdate.fromOplog(update, givenDocumentKey(), givenUsersMapping())).isNotPresent();
+    }
+
+    @Test
+    void it_should_not_resolve_changes_on_filtered_mappings() {
+        TableMapping mapping = givenUsersMapping();
+        mapping.setFilters(singletonList(new FilterMapping("name", "John Doe")));
+        Document update = new Document("$set", new Document("name", "John Doe"));
+
+        assertThat(PartialUpdate.fromOplog(update, givenDocumentKey(), mapping)).isNotPresent();
+    }
+
+    @Test
+    void it_should_detect_replacements() {
+        assertThat(PartialUpdate.isReplacement(new Document("_id", new ObjectId()).append("name", "John Doe"))).isTrue();
+        assertThat(PartialUpdate.isReplacement(new Document("$set", new Document("name", "John Doe")))).isFalse();
+    }
+
+    private static Document givenDocumentKey() {
+        return new Document("_id", new ObjectId());
+    }
+
+    private static TableMapping givenUsersMapping() {
+        TableMapping mapping = new TableMapping();
+        mapping.setPrimaryKey("id");
+        mapping.setSourceCollection("users");
+        mapping.setDestinationName("users");
+        mapping.setMappingName("users");
+        mapping.setFieldMappings(asList(
+                new FieldMapping("_creationdate", "_creationdate", "TIMESTAMP", true, null, null),
+                new FieldMapping("_id", "id", "TEXT", false, null, null),
+                new FieldMapping("name", "name", "TEXT", false, null, null),
+                new FieldMapping("nickname", "nickname", "TEXT", false, null, null),
+                new FieldMapping("address.city", "city", "TEXT", false, null, null),
+                new FieldMapping("address.zipcode", "zipcode", "TEXT", false, null, null),
+                new FieldMapping("comments", "users_comments", "_ARRAY", false, "user_id", null)
+        ));
+        return mapping;
+    }
+}